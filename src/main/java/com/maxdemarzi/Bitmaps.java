@@ -0,0 +1,102 @@
+package com.maxdemarzi;
+
+import org.roaringbitmap.RoaringBitmap;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.io.*;
+import java.util.List;
+
+// Turns node id bitmaps into bytes for callers that want the set of ids instead of the nodes, and back.
+// The bytes follow the portable 64 bit Roaring format shared with the C, Go and Python libraries:
+// the number of buckets as a little endian 64 bit integer, then for each bucket in ascending order
+// its high 32 bits as a little endian 32 bit integer followed by a portable 32 bit Roaring bitmap.
+public class Bitmaps {
+
+    // The ids from start to end (exclusive), added a high bucket at a time as RoaringBitmaps, see IdBuffer
+    public static Roaring64NavigableMap range(long start, long end) {
+        Roaring64NavigableMap bitmap = new Roaring64NavigableMap();
+        while (start < end) {
+            long bucketEnd = Math.min(end, ((start >>> 32) + 1) << 32);
+            bitmap.addLong(start);
+            bitmap.add(start + 1, bucketEnd);
+            start = bucketEnd;
+        }
+        return bitmap;
+    }
+
+    public static byte[] serialize(Roaring64NavigableMap bitmap) {
+        try {
+            // Roaring64NavigableMap writes a big endian header around portable buckets, so we rewrite the header
+            ByteArrayOutputStream java = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, bitmap.serializedSizeInBytes()));
+            try (DataOutputStream out = new DataOutputStream(java)) {
+                bitmap.serialize(out);
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(java.toByteArray()));
+            in.readBoolean();
+            int buckets = in.readInt();
+
+            ByteArrayOutputStream portable = new ByteArrayOutputStream(java.size() + 4);
+            try (DataOutputStream out = new DataOutputStream(portable)) {
+                out.writeLong(Long.reverseBytes(buckets));
+                RoaringBitmap bucket = new RoaringBitmap();
+                for (int i = 0; i < buckets; i++) {
+                    out.writeInt(Integer.reverseBytes(in.readInt()));
+                    bucket.deserialize(in);
+                    bucket.serialize(out);
+                }
+            }
+            return portable.toByteArray();
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    public static byte[] serialize(Roaring64NavigableMap bitmap, boolean runOptimize) {
+        if (runOptimize) {
+            Roaring64NavigableMap optimized = new Roaring64NavigableMap();
+            optimized.or(bitmap);
+            optimized.runOptimize();
+            bitmap = optimized;
+        }
+        return serialize(bitmap);
+    }
+
+    // Byte arrays inside a list reach a procedure as a list of numbers
+    public static byte[] asBytes(Object bitmap) {
+        if (bitmap instanceof byte[]) {
+            return (byte[]) bitmap;
+        }
+        List<?> numbers = (List<?>) bitmap;
+        byte[] bytes = new byte[numbers.size()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = ((Number) numbers.get(i)).byteValue();
+        }
+        return bytes;
+    }
+
+    public static Roaring64NavigableMap deserialize(byte[] bytes) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            long buckets = Long.reverseBytes(in.readLong());
+
+            ByteArrayOutputStream java = new ByteArrayOutputStream(bytes.length + 8);
+            try (DataOutputStream out = new DataOutputStream(java)) {
+                out.writeBoolean(false);
+                out.writeInt((int) buckets);
+                RoaringBitmap bucket = new RoaringBitmap();
+                for (long i = 0; i < buckets; i++) {
+                    out.writeInt(Integer.reverseBytes(in.readInt()));
+                    bucket.deserialize(in);
+                    bucket.serialize(out);
+                }
+            }
+            Roaring64NavigableMap bitmap = new Roaring64NavigableMap();
+            try (DataInputStream javaIn = new DataInputStream(new ByteArrayInputStream(java.toByteArray()))) {
+                bitmap.deserialize(javaIn);
+            }
+            return bitmap;
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.maxdemarzi;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventListener;
+import org.neo4j.values.storable.Value;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Keeps the value dictionaries, time partitions and columns current as transactions commit.
+// beforeCommit can still read the transaction, so it records the labels and watched property values
+// of every touched node; afterCommit applies them to the dictionaries, partitions and columns,
+// and hands the touched nodes to the standing queries.
+public class ChangeListener implements TransactionEventListener<Collection<NodeChange>> {
+    private final DatabaseCaches database;
+
+    ChangeListener(DatabaseCaches database) {
+        this.database = database;
+    }
+
+    @Override
+    public Collection<NodeChange> beforeCommit(TransactionData data, Transaction transaction, GraphDatabaseService databaseService) {
+        Set<String> properties = Stream.of(database.dictionaryCache, database.partitionCache, database.columnCache)
+                .flatMap(cache -> cache.asMap().keySet().stream())
+                .map(Pair::getRight)
+                .collect(Collectors.toSet());
+        if (properties.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // Never fail the user's transaction because of us
+        try {
+            Map<Long, NodeChange> changes = new HashMap<>();
+            for (LabelEntry entry : data.assignedLabels()) {
+                change(changes, entry.node()).assignedLabels.add(entry.label().name());
+            }
+            for (LabelEntry entry : data.removedLabels()) {
+                change(changes, entry.node()).removedLabels.add(entry.label().name());
+            }
+            for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+                if (properties.contains(entry.key())) {
+                    change(changes, entry.entity()).changed(entry.key(), entry.previouslyCommittedValue(), entry.value());
+                }
+            }
+            for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+                if (properties.contains(entry.key())) {
+                    change(changes, entry.entity()).changed(entry.key(), entry.previouslyCommittedValue(), null);
+                }
+            }
+
+            Set<Long> deleted = new HashSet<>();
+            for (Node node : data.deletedNodes()) {
+                deleted.add(node.getId());
+            }
+
+            for (NodeChange change : changes.values()) {
+                if (!deleted.contains(change.nodeId)) {
+                    Node node = transaction.getNodeById(change.nodeId);
+                    for (Label label : node.getLabels()) {
+                        change.labelsAfter.add(label.name());
+                    }
+                    // A node that gained or lost a label gains or loses the values it already had
+                    if (!change.assignedLabels.isEmpty() || !change.removedLabels.isEmpty()) {
+                        for (String property : properties) {
+                            if (!change.isChanged(property)) {
+                                change.unchanged(property, node.getProperty(property, null));
+                            }
+                        }
+                    }
+                }
+                change.labelsBefore.addAll(change.labelsAfter);
+                change.labelsBefore.removeAll(change.assignedLabels);
+                change.labelsBefore.addAll(change.removedLabels);
+            }
+            return changes.values();
+        } catch (Exception exception) {
+            database.logger.warn("Unable to track changes for the value dictionaries", exception);
+            return Collections.emptyList();
+        }
+    }
+
+    @Override
+    public void afterCommit(TransactionData data, Collection<NodeChange> changes, GraphDatabaseService databaseService) {
+        database.standing.update(data);
+        if (changes == null || changes.isEmpty()) {
+            return;
+        }
+        database.dictionaryCache.asMap().forEach((key, dictionary) -> {
+            boolean changed = false;
+            for (NodeChange change : changes) {
+                Value before = change.before(key.getLeft(), key.getRight());
+                Value after = change.after(key.getLeft(), key.getRight());
+                if (!Objects.equals(before, after)) {
+                    dictionary.update(before, after, change.nodeId);
+                    changed = true;
+                }
+            }
+            // Cached bitmaps of this property are now stale, they reload from the dictionary
+            if (changed) {
+                database.invalidate(key.getLeft(), key.getRight());
+            }
+        });
+        database.partitionCache.asMap().forEach((key, partitions) -> {
+            boolean changed = false;
+            for (NodeChange change : changes) {
+                Value before = change.before(key.getLeft(), key.getRight());
+                Value after = change.after(key.getLeft(), key.getRight());
+                if (!Objects.equals(before, after)) {
+                    partitions.update(before, after, change.nodeId);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                database.invalidate(key.getLeft(), key.getRight());
+            }
+        });
+        AtomicBoolean columnsChanged = new AtomicBoolean();
+        database.columnCache.asMap().forEach((key, column) -> {
+            boolean changed = false;
+            for (NodeChange change : changes) {
+                Value before = change.before(key.getLeft(), key.getRight());
+                Value after = change.after(key.getLeft(), key.getRight());
+                if (!Objects.equals(before, after)) {
+                    column.update(after, change.nodeId);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                database.invalidate(key.getLeft(), key.getRight());
+                columnsChanged.set(true);
+            }
+        });
+        // Columns grow with the nodes kept on the side and the merges of them, and the value bitmaps make room
+        if (columnsChanged.get()) {
+            database.chargeColumns();
+        }
+    }
+
+    @Override
+    public void afterRollback(TransactionData data, Collection<NodeChange> changes, GraphDatabaseService databaseService) {
+    }
+
+    private static NodeChange change(Map<Long, NodeChange> changes, Node node) {
+        return changes.computeIfAbsent(node.getId(), NodeChange::new);
+    }
+}
@@ -0,0 +1,410 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.internal.kernel.api.*;
+import org.neo4j.io.pagecache.tracing.cursor.PageCursorTracer;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.impl.coreapi.InternalTransaction;
+import org.neo4j.values.storable.IntegralValue;
+import org.neo4j.values.storable.NumberValue;
+import org.neo4j.values.storable.Value;
+import org.neo4j.values.storable.Values;
+import org.roaringbitmap.longlong.LongIterator;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// The values of one (label, property) held as a column of primitives aligned with the sorted ids of the nodes that have it,
+// for properties without an index that are filtered on too often to scan the label every time.
+// When every value is an integer the column holds longs, when every value is a number it holds doubles, and ranges are
+// compared directly in a tight loop. Otherwise it holds codes into the distinct values, and each distinct value is tested
+// against the predicate only once. Integers beyond 2^53 are only exact as longs, so a column mixing them with floats holds codes.
+// Nodes that get the property after the column is built are kept on the side until there are enough to merge in.
+public class ColumnStore {
+    private static final int BATCH = 65_536;
+    private static final int MISSING = -1;
+    private static final long MISSING_INTEGER = Long.MIN_VALUE;
+    // Integers up to this size are exact as doubles
+    private static final long EXACT = 1L << 53;
+    // A node kept on the side: its tree map entry, boxed id and value
+    private static final long SIDE_BYTES = 96;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private long[] nodeIds;
+    // Either integers, with MISSING_INTEGER for a removed value, numbers, with NaN for a removed value,
+    // or codes, with MISSING for a removed value
+    private long[] integers;
+    private double[] numbers;
+    private int[] codes;
+    private List<Value> values;
+    private Map<Value, Integer> valueCodes;
+    private final TreeMap<Long, Value> added = new TreeMap<>();
+
+    public ColumnStore(long[] nodeIds, Value[] nodeValues) {
+        fill(nodeIds, nodeValues);
+    }
+
+    // Reads the property of every node of the label, in batches read in parallel, each in its own transaction
+    public static ColumnStore build(DatabaseCaches database, Label label, String property) {
+        List<CompletableFuture<Batch>> batches = new ArrayList<>();
+        long[] pending = new long[BATCH];
+        int size = 0;
+        LongIterator iterator = database.labelCache.get(label).getLongIterator();
+        while (iterator.hasNext()) {
+            pending[size++] = iterator.next();
+            if (size == BATCH || !iterator.hasNext()) {
+                long[] ids = Arrays.copyOf(pending, size);
+                // The common pool, so a build running on the loader pool never waits on itself
+                batches.add(CompletableFuture.supplyAsync(() -> read(database, property, ids), ForkJoinPool.commonPool()));
+                size = 0;
+            }
+        }
+
+        // The batches are in node id order, so the column is too
+        int total = batches.stream().mapToInt(read -> read.join().size).sum();
+        long[] nodeIds = new long[total];
+        Value[] nodeValues = new Value[total];
+        int offset = 0;
+        for (CompletableFuture<Batch> read : batches) {
+            Batch batch = read.join();
+            System.arraycopy(batch.nodeIds, 0, nodeIds, offset, batch.size);
+            System.arraycopy(batch.values, 0, nodeValues, offset, batch.size);
+            offset += batch.size;
+        }
+        return new ColumnStore(nodeIds, nodeValues);
+    }
+
+    // The node ids of a batch that have the property, and their values
+    private static class Batch {
+        final long[] nodeIds;
+        final Value[] values;
+        int size;
+
+        Batch(int capacity) {
+            nodeIds = new long[capacity];
+            values = new Value[capacity];
+        }
+    }
+
+    private static Batch read(DatabaseCaches database, String property, long[] ids) {
+        Batch batch = new Batch(ids.length);
+        try (Transaction tx = database.graph.beginTx()) {
+            KernelTransaction ktx = ((InternalTransaction) tx).kernelTransaction();
+            int propertyKeyId = ktx.tokenRead().propertyKey(property);
+            if (propertyKeyId == TokenRead.NO_TOKEN) {
+                return batch;
+            }
+            Read read = ktx.dataRead();
+            CursorFactory cursors = ktx.cursors();
+            try (NodeCursor node = cursors.allocateNodeCursor(PageCursorTracer.NULL);
+                 PropertyCursor properties = cursors.allocatePropertyCursor(PageCursorTracer.NULL, ktx.memoryTracker())) {
+                for (long id : ids) {
+                    read.singleNode(id, node);
+                    if (node.next()) {
+                        node.properties(properties);
+                        if (properties.seekProperty(propertyKeyId)) {
+                            batch.nodeIds[batch.size] = id;
+                            batch.values[batch.size++] = properties.propertyValue();
+                        }
+                    }
+                }
+            }
+        }
+        return batch;
+    }
+
+    private void fill(long[] ids, Value[] nodeValues) {
+        nodeIds = ids;
+        values = new ArrayList<>();
+        valueCodes = new HashMap<>();
+        integers = null;
+        numbers = null;
+        codes = null;
+        if (Arrays.stream(nodeValues).allMatch(ColumnStore::isInteger)) {
+            integers = new long[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                integers[i] = ((IntegralValue) nodeValues[i]).longValue();
+            }
+        } else if (Arrays.stream(nodeValues).allMatch(ColumnStore::isNumber)) {
+            numbers = new double[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                numbers[i] = ((NumberValue) nodeValues[i]).doubleValue();
+            }
+        } else {
+            codes = new int[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                codes[i] = code(nodeValues[i]);
+            }
+        }
+    }
+
+    // An integer the integer column can hold
+    private static boolean isInteger(Value value) {
+        return value instanceof IntegralValue && ((IntegralValue) value).longValue() != MISSING_INTEGER;
+    }
+
+    // A number the number column holds exactly
+    private static boolean isNumber(Value value) {
+        return value instanceof NumberValue && (!(value instanceof IntegralValue) || Math.abs(((IntegralValue) value).longValue()) <= EXACT);
+    }
+
+    private int code(Value value) {
+        return valueCodes.computeIfAbsent(value, k -> {
+            values.add(k);
+            return values.size() - 1;
+        });
+    }
+
+    // What the column holds: integer, number or code
+    public String type() {
+        lock.readLock().lock();
+        try {
+            return integers != null ? "integer" : numbers != null ? "number" : "code";
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // How many nodes have a value
+    public long nodes() {
+        lock.readLock().lock();
+        try {
+            long nodes = added.size();
+            for (int i = 0; i < nodeIds.length; i++) {
+                if (has(i)) {
+                    nodes++;
+                }
+            }
+            return nodes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The column and the nodes kept on the side until they are merged in
+    public long sizeInBytes() {
+        lock.readLock().lock();
+        try {
+            return nodeIds.length * 8L + (codes != null ? codes.length * 4L : nodeIds.length * 8L) + added.size() * SIDE_BYTES;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Whether the node at the index still has its value
+    private boolean has(int index) {
+        if (integers != null) {
+            return integers[index] != MISSING_INTEGER;
+        }
+        return numbers != null ? !Double.isNaN(numbers[index]) : codes[index] != MISSING;
+    }
+
+    // The node ids with a value accepted by the predicate
+    public Roaring64NavigableMap get(IndexQuery predicate) {
+        Roaring64NavigableMap bitmap = new Roaring64NavigableMap();
+        IdBuffer ids = new IdBuffer(bitmap);
+        lock.readLock().lock();
+        try {
+            long[] integerBounds = integers != null ? integerBounds(predicate) : null;
+            double[] bounds = numbers != null ? bounds(predicate) : null;
+            if (integerBounds != null) {
+                // MISSING_INTEGER is below every lower bound, so removed values never match
+                long lower = integerBounds[0];
+                long upper = integerBounds[1];
+                for (int i = 0; i < integers.length; i++) {
+                    long integer = integers[i];
+                    if (integer >= lower && integer <= upper) {
+                        ids.add(nodeIds[i]);
+                    }
+                }
+            } else if (integers != null) {
+                for (int i = 0; i < integers.length; i++) {
+                    if (integers[i] != MISSING_INTEGER && predicate.acceptsValue(Values.longValue(integers[i]))) {
+                        ids.add(nodeIds[i]);
+                    }
+                }
+            } else if (bounds != null) {
+                double lower = bounds[0];
+                double upper = bounds[1];
+                // NaN fails both comparisons, so removed values never match
+                for (int i = 0; i < numbers.length; i++) {
+                    double number = numbers[i];
+                    if (number >= lower && number <= upper) {
+                        ids.add(nodeIds[i]);
+                    }
+                }
+            } else if (numbers != null) {
+                for (int i = 0; i < numbers.length; i++) {
+                    if (!Double.isNaN(numbers[i]) && predicate.acceptsValue(Values.doubleValue(numbers[i]))) {
+                        ids.add(nodeIds[i]);
+                    }
+                }
+            } else {
+                boolean[] accepted = new boolean[values.size()];
+                for (int code = 0; code < accepted.length; code++) {
+                    accepted[code] = predicate.acceptsValue(values.get(code));
+                }
+                for (int i = 0; i < codes.length; i++) {
+                    int code = codes[i];
+                    if (code != MISSING && accepted[code]) {
+                        ids.add(nodeIds[i]);
+                    }
+                }
+            }
+            added.forEach((nodeId, value) -> {
+                if (predicate.acceptsValue(value)) {
+                    ids.add(nodeId);
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+        ids.flush();
+        return bitmap;
+    }
+
+    // The smallest and largest accepted number of an exact or range number predicate,
+    // with exclusive bounds moved in by one step, or null for any other predicate
+    private static double[] bounds(IndexQuery predicate) {
+        if (predicate instanceof IndexQuery.ExactPredicate) {
+            Value value = ((IndexQuery.ExactPredicate) predicate).value();
+            if (value instanceof NumberValue) {
+                double number = ((NumberValue) value).doubleValue();
+                return new double[]{number, number};
+            }
+            return null;
+        }
+        if (predicate instanceof IndexQuery.RangePredicate) {
+            IndexQuery.RangePredicate<?> range = (IndexQuery.RangePredicate<?>) predicate;
+            Value from = range.fromValue();
+            Value to = range.toValue();
+            boolean hasLower = from instanceof NumberValue;
+            boolean hasUpper = to instanceof NumberValue;
+            if ((!hasLower && from != null && from != Values.NO_VALUE) || (!hasUpper && to != null && to != Values.NO_VALUE)) {
+                return null;
+            }
+            double lower = Double.NEGATIVE_INFINITY;
+            double upper = Double.POSITIVE_INFINITY;
+            if (hasLower) {
+                lower = ((NumberValue) from).doubleValue();
+                lower = range.fromInclusive() ? lower : Math.nextUp(lower);
+            }
+            if (hasUpper) {
+                upper = ((NumberValue) to).doubleValue();
+                upper = range.toInclusive() ? upper : Math.nextDown(upper);
+            }
+            return new double[]{lower, upper};
+        }
+        return null;
+    }
+
+    // The smallest and largest accepted integer of an exact or range number predicate,
+    // with fractional and exclusive bounds moved in to the nearest integer, or null for any other predicate
+    private static long[] integerBounds(IndexQuery predicate) {
+        double[] bounds = bounds(predicate);
+        if (bounds == null) {
+            return null;
+        }
+        long lower = MISSING_INTEGER + 1;
+        long upper = Long.MAX_VALUE;
+        Value from;
+        Value to;
+        boolean fromInclusive = true;
+        boolean toInclusive = true;
+        if (predicate instanceof IndexQuery.ExactPredicate) {
+            from = to = ((IndexQuery.ExactPredicate) predicate).value();
+        } else {
+            IndexQuery.RangePredicate<?> range = (IndexQuery.RangePredicate<?>) predicate;
+            from = range.fromValue();
+            to = range.toValue();
+            fromInclusive = range.fromInclusive();
+            toInclusive = range.toInclusive();
+        }
+        // Integers are compared as longs, only floats are rounded in, saturating beyond the range of a long
+        if (from instanceof IntegralValue) {
+            long bound = ((IntegralValue) from).longValue();
+            if (!fromInclusive && bound == Long.MAX_VALUE) {
+                return new long[]{1, 0};
+            }
+            lower = Math.max(lower, fromInclusive ? bound : bound + 1);
+        } else if (from instanceof NumberValue) {
+            double bound = ((NumberValue) from).doubleValue();
+            if (Double.isNaN(bound)) {
+                return null;
+            }
+            double rounded = Math.ceil(bound);
+            lower = Math.max(lower, (long) (!fromInclusive && rounded == bound ? rounded + 1 : rounded));
+        }
+        if (to instanceof IntegralValue) {
+            long bound = ((IntegralValue) to).longValue();
+            if (!toInclusive && bound == Long.MIN_VALUE) {
+                return new long[]{1, 0};
+            }
+            upper = toInclusive ? bound : bound - 1;
+        } else if (to instanceof NumberValue) {
+            double bound = ((NumberValue) to).doubleValue();
+            if (Double.isNaN(bound)) {
+                return null;
+            }
+            double rounded = Math.floor(bound);
+            upper = (long) (!toInclusive && rounded == bound ? rounded - 1 : rounded);
+        }
+        return new long[]{lower, upper};
+    }
+
+    // Changes the value of a node, which may be null when it lost the property
+    public void update(Value after, long nodeId) {
+        lock.writeLock().lock();
+        try {
+            added.remove(nodeId);
+            int index = Arrays.binarySearch(nodeIds, nodeId);
+            if (index >= 0) {
+                if (integers != null) {
+                    integers[index] = isInteger(after) ? ((IntegralValue) after).longValue() : MISSING_INTEGER;
+                    // A value that isn't an integer waits on the side until the column is merged into numbers or codes
+                    if (after != null && !isInteger(after)) {
+                        added.put(nodeId, after);
+                    }
+                } else if (numbers != null) {
+                    numbers[index] = isNumber(after) ? ((NumberValue) after).doubleValue() : Double.NaN;
+                    // A value that isn't a number waits on the side until the column is merged into codes
+                    if (after != null && !isNumber(after)) {
+                        added.put(nodeId, after);
+                    }
+                } else {
+                    codes[index] = after == null ? MISSING : code(after);
+                }
+            } else if (after != null) {
+                added.put(nodeId, after);
+            }
+            if (added.size() >= Compactor.UPDATE_THRESHOLD) {
+                merge();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Rebuilds the column with the nodes kept on the side
+    private void merge() {
+        TreeMap<Long, Value> merged = new TreeMap<>(added);
+        for (int i = 0; i < nodeIds.length; i++) {
+            if (has(i)) {
+                merged.putIfAbsent(nodeIds[i], value(i));
+            }
+        }
+        added.clear();
+        fill(merged.keySet().stream().mapToLong(Long::longValue).toArray(), merged.values().toArray(new Value[0]));
+    }
+
+    private Value value(int index) {
+        if (integers != null) {
+            return Values.longValue(integers[index]);
+        }
+        return numbers != null ? Values.doubleValue(numbers[index]) : values.get(codes[index]);
+    }
+}
@@ -0,0 +1,81 @@
+package com.maxdemarzi;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs runOptimize over cached bitmaps in the background, so dense and sequential id sets become run containers.
+// Queries may be reading a cached bitmap at any time, so an optimized copy is built and swapped in
+// only if the cache still holds the bitmap it was copied from.
+public class Compactor {
+    // Dictionaries are compacted again once this many node ids have moved since their last compaction
+    static final int UPDATE_THRESHOLD = 10_000;
+
+    // A refreshed bitmap may be handed to us before the cache swaps it in, so we look again a little later
+    private static final int ATTEMPTS = 3;
+
+    private static final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "boolean-filter-compactor");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private static final AtomicLong compactions = new AtomicLong();
+    private static final AtomicLong savedBytes = new AtomicLong();
+
+    public static long compactions() {
+        return compactions.get();
+    }
+
+    public static long savedBytes() {
+        return savedBytes.get();
+    }
+
+    public static <K> void compact(AsyncCache<K, Roaring64NavigableMap> cache, K key, Roaring64NavigableMap bitmap) {
+        compact(cache, key, bitmap, ATTEMPTS);
+    }
+
+    private static <K> void compact(AsyncCache<K, Roaring64NavigableMap> cache, K key, Roaring64NavigableMap bitmap, int attempts) {
+        compactor.schedule(() -> {
+            CompletableFuture<Roaring64NavigableMap> current = cache.asMap().get(key);
+            if (current == null || !current.isDone() || current.isCompletedExceptionally() || current.join() != bitmap) {
+                if (attempts > 1 && current != null) {
+                    compact(cache, key, bitmap, attempts - 1);
+                }
+                return;
+            }
+            Roaring64NavigableMap optimized = optimize(bitmap);
+            if (cache.asMap().replace(key, current, CompletableFuture.completedFuture(optimized))) {
+                saved(bitmap, optimized);
+            }
+        }, attempts == ATTEMPTS ? 0 : 1, TimeUnit.SECONDS);
+    }
+
+    public static void compact(ValueDictionary dictionary) {
+        compactor.execute(() -> {
+            long before = dictionary.sizeInBytes();
+            if (dictionary.compact()) {
+                compactions.incrementAndGet();
+                savedBytes.addAndGet(before - dictionary.sizeInBytes());
+            }
+        });
+    }
+
+    static Roaring64NavigableMap optimize(Roaring64NavigableMap bitmap) {
+        Roaring64NavigableMap optimized = new Roaring64NavigableMap();
+        optimized.or(bitmap);
+        optimized.runOptimize();
+        return optimized;
+    }
+
+    private static void saved(Roaring64NavigableMap bitmap, Roaring64NavigableMap optimized) {
+        compactions.incrementAndGet();
+        savedBytes.addAndGet(bitmap.getLongSizeInBytes() - optimized.getLongSizeInBytes());
+    }
+}
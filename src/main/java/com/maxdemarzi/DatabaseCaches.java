@@ -0,0 +1,267 @@
+package com.maxdemarzi;
+
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.maxdemarzi.metrics.Metrics;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
+import org.neo4j.dbms.api.DatabaseManagementService;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.logging.Log;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+// Everything cached for one database: the graph and log it is loaded with, its bitmaps, dictionaries, partitions,
+// columns and indexes, its segments, hot intersections and standing queries. Every cache is weighed in bytes
+// and takes its own share of a memory budget for the database.
+// Procedures use the caches of the database they are called in, so nothing loaded for one database
+// is ever seen by another, and one database filling its budget can't evict another's bitmaps.
+public class DatabaseCaches {
+    private static final ConcurrentHashMap<String, DatabaseCaches> databases = new ConcurrentHashMap<>();
+
+    final String name;
+    final GraphDatabaseService graph;
+    final Log logger;
+
+    // The caches share this many bytes, set per database with -Dcom.maxdemarzi.boolean.budget.<database>,
+    // or for every database with -Dcom.maxdemarzi.boolean.budget, a quarter of the heap otherwise.
+    // In 32nds: values 18, intersections 4, dictionaries, trigram indexes, partitions and hops 2 each,
+    // presence and label bitmaps 1 each. Columns never expire, so their bytes come out of the share of the values.
+    final long budget;
+
+    // This cache stores the node ids by Dimension and Value
+    // Concurrent requests for the same key share a single load
+    final AsyncLoadingCache<Triple<Label, String, Object>, Roaring64NavigableMap> valueCache;
+
+    // This cache stores the sorted distinct values and their node ids by Label and Property.
+    // Dictionaries are kept current by the ChangeListener, so they are never refreshed.
+    final LoadingCache<Pair<Label, String>, ValueDictionary> dictionaryCache;
+
+    // This cache stores the node ids of a date property by month, for properties partitioned with the partition procedure.
+    // Partitions are kept current by the ChangeListener, so they are never refreshed.
+    final LoadingCache<Pair<Label, String>, TimePartitions> partitionCache;
+
+    // This cache stores the values of a property as a column aligned with node ids, for properties projected with the column procedure.
+    // Columns are kept current by the ChangeListener, so they are never refreshed, and they were asked for,
+    // so they never expire either, a column stays until the database is dropped.
+    final LoadingCache<Pair<Label, String>, ColumnStore> columnCache;
+
+    // This cache stores the node ids of a Label that have a Property, for exists filters
+    final LoadingCache<Pair<Label, String>, Roaring64NavigableMap> presenceCache;
+
+    // This cache stores a trigram index of the string values by Label and Property, for CONTAINS and SUFFIX searches
+    final LoadingCache<Pair<Label, String>, NGramIndex> ngramCache;
+
+    // This cache stores the node ids of every node of a Label, to keep projected and multi-label filters to the queried label
+    final LoadingCache<Label, Roaring64NavigableMap> labelCache;
+
+    // This cache stores the node ids reaching a neighbor with a value across a typed relationship.
+    // The neighbor bitmap comes from the valueCache and is projected without blocking a loader thread on it.
+    final AsyncLoadingCache<HopKey, Roaring64NavigableMap> hopCache;
+
+    final Segments segments;
+    final Intersections intersections;
+    final StandingQueries standing;
+
+    // Null unless loaded bitmaps are shared with the other instances of a cluster
+    final Replication replication;
+
+    // Procedures get theirs through of(), these are neither shared nor kept current by transactions
+    DatabaseCaches(GraphDatabaseService graph, Log logger) {
+        this.name = graph.databaseName();
+        this.graph = graph;
+        this.logger = logger;
+        this.budget = Long.getLong("com.maxdemarzi.boolean.budget." + name,
+                Long.getLong("com.maxdemarzi.boolean.budget", Runtime.getRuntime().maxMemory() / 4));
+
+        valueCache = Caffeine.newBuilder()
+                .maximumWeight(share(18))
+                .weigher(DatabaseCaches::weigh)
+                .expireAfterAccess(60, TimeUnit.MINUTES)
+                .refreshAfterWrite(10, TimeUnit.MINUTES)
+                .executor(Procedures.loaders)
+                .recordStats()
+                .buildAsync(new ValueLoader(this));
+
+        dictionaryCache = Caffeine.newBuilder()
+                .maximumWeight(share(2))
+                .weigher((Pair<Label, String> key, ValueDictionary dictionary) -> weight(dictionary.sizeInBytes()))
+                .expireAfterAccess(60, TimeUnit.MINUTES)
+                .executor(Procedures.loaders)
+                .recordStats()
+                .build(key -> {
+                    ValueDictionary dictionary = ValueDictionary.build(this, key.getLeft(), key.getRight());
+                    Compactor.compact(dictionary);
+                    return dictionary;
+                });
+
+        partitionCache = Caffeine.newBuilder()
+                .maximumWeight(share(2))
+                .weigher((Pair<Label, String> key, TimePartitions partitions) -> weight(partitions.sizeInBytes()))
+                .expireAfterAccess(60, TimeUnit.MINUTES)
+                .executor(Procedures.loaders)
+                .recordStats()
+                .build(key -> TimePartitions.build(this, key.getLeft(), key.getRight()));
+
+        columnCache = Caffeine.newBuilder()
+                .executor(Procedures.loaders)
+                .recordStats()
+                .build(key -> ColumnStore.build(this, key.getLeft(), key.getRight()));
+
+        presenceCache = Caffeine.newBuilder()
+                .maximumWeight(share(1))
+                .weigher(DatabaseCaches::weigh)
+                .expireAfterAccess(60, TimeUnit.MINUTES)
+                .refreshAfterWrite(10, TimeUnit.MINUTES)
+                .executor(Procedures.loaders)
+                .recordStats()
+                .build(key -> {
+                    // Nothing reads the bitmap before it is cached, so it is run optimized in place
+                    Roaring64NavigableMap nodeIds = PropertyScanner.present(this, key.getLeft(), key.getRight());
+                    nodeIds.runOptimize();
+                    return nodeIds;
+                });
+
+        ngramCache = Caffeine.newBuilder()
+                .maximumWeight(share(2))
+                .weigher((Pair<Label, String> key, NGramIndex ngrams) -> weight(ngrams.sizeInBytes()))
+                .expireAfterAccess(60, TimeUnit.MINUTES)
+                .executor(Procedures.loaders)
+                .recordStats()
+                .build(key -> new NGramIndex(dictionaryCache.get(key)));
+
+        labelCache = Caffeine.newBuilder()
+                .maximumWeight(share(1))
+                .weigher(DatabaseCaches::weigh)
+                .expireAfterAccess(60, TimeUnit.MINUTES)
+                .refreshAfterWrite(10, TimeUnit.MINUTES)
+                .executor(Procedures.loaders)
+                .recordStats()
+                .build(label -> {
+                    // Nothing reads the bitmap before it is cached, so it is run optimized in place
+                    Roaring64NavigableMap nodeIds = PropertyScanner.nodes(this, label);
+                    nodeIds.runOptimize();
+                    return nodeIds;
+                });
+
+        hopCache = Caffeine.newBuilder()
+                .maximumWeight(share(2))
+                .weigher(DatabaseCaches::weigh)
+                .expireAfterAccess(60, TimeUnit.MINUTES)
+                .refreshAfterWrite(10, TimeUnit.MINUTES)
+                .executor(Procedures.loaders)
+                .recordStats()
+                .buildAsync((HopKey key, Executor executor) ->
+                        valueCache.get(Triple.of(key.neighbor, key.property, key.value))
+                                .thenApplyAsync(neighbors -> project(key, neighbors), executor));
+
+        segments = new Segments(this);
+        intersections = new Intersections(this);
+        standing = new StandingQueries(this);
+        replication = Replication.of(this);
+    }
+
+    private Roaring64NavigableMap project(HopKey key, Roaring64NavigableMap neighbors) {
+        Roaring64NavigableMap nodeIds = RelationshipProjection.project(this, key, neighbors);
+        Compactor.compact(hopCache, key, nodeIds);
+        return nodeIds;
+    }
+
+    // The caches of the database, created the first time a procedure is called in it,
+    // and again when the database was dropped and created since
+    static DatabaseCaches of(GraphDatabaseService graph, Log logger) {
+        DatabaseCaches existing = databases.get(graph.databaseName());
+        if (existing != null && existing.graph.isAvailable(0)) {
+            return existing;
+        }
+        synchronized (databases) {
+            existing = databases.get(graph.databaseName());
+            if (existing != null && existing.graph.isAvailable(0)) {
+                return existing;
+            }
+            DatabaseCaches caches = new DatabaseCaches(graph, logger);
+            if (existing != null) {
+                existing.stop();
+            }
+            caches.start();
+            databases.put(caches.name, caches);
+            return caches;
+        }
+    }
+
+    static List<DatabaseCaches> all() {
+        return new ArrayList<>(databases.values());
+    }
+
+    private void start() {
+        Metrics.registerMBean(name, valueCache.synchronous());
+        segments.start();
+        if (replication != null) {
+            replication.start();
+        }
+        try {
+            DatabaseManagementService databaseManagementService = ((GraphDatabaseAPI) graph).getDependencyResolver()
+                    .resolveDependency(DatabaseManagementService.class);
+            databaseManagementService.registerTransactionEventListener(name, new ChangeListener(this));
+        } catch (Exception exception) {
+            logger.warn("Unable to keep the value dictionaries current, they will only be as fresh as their last load", exception);
+        }
+    }
+
+    private void stop() {
+        segments.stop();
+        if (replication != null) {
+            replication.stop();
+        }
+    }
+
+    // This many 32nds of the budget
+    long share(int parts) {
+        return budget / 32 * parts;
+    }
+
+    // Bitmaps are weighed by their size in bytes
+    static int weigh(Object key, Roaring64NavigableMap bitmap) {
+        return weight(bitmap.getLongSizeInBytes());
+    }
+
+    // Weights are ints, anything bigger weighs the most there is
+    static int weight(long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, bytes);
+    }
+
+    // Columns stay until the database is dropped, so the value bitmaps make room for them
+    void chargeColumns() {
+        long columns = columnCache.asMap().values().stream().mapToLong(ColumnStore::sizeInBytes).sum();
+        valueCache.synchronous().policy().eviction()
+                .ifPresent(eviction -> eviction.setMaximum(Math.max(0, share(18) - columns)));
+    }
+
+    // Drops the cached bitmaps of a property, so they are loaded again
+    void invalidate(Label label, String property) {
+        valueCache.synchronous().asMap().keySet()
+                .removeIf(key -> key.getLeft().name().equals(label.name()) && key.getMiddle().equals(property));
+        hopCache.synchronous().asMap().keySet()
+                .removeIf(key -> key.neighbor.name().equals(label.name()) && key.property.equals(property));
+        intersections.invalidate(label, property);
+    }
+
+    NGramIndex getNGramIndex(Label label, String property) {
+        Pair<Label, String> key = Pair.of(label, property);
+        NGramIndex ngrams = ngramCache.get(key);
+        // New values were added to the dictionary since the index was built
+        if (ngrams.isStale(dictionaryCache.get(key))) {
+            ngramCache.invalidate(key);
+            ngrams = ngramCache.get(key);
+        }
+        return ngrams;
+    }
+}
@@ -0,0 +1,209 @@
+package com.maxdemarzi;
+
+import org.roaringbitmap.*;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+// A flat array of words over a fixed range of node ids, for combining filters that cover most of a label.
+// At those densities Roaring holds bitmap containers anyway, and going container by container only adds dispatch,
+// while every bitset of a query shares the same range, so AND, ANDNOT and OR are one straight loop over the words
+// that the JIT unrolls and vectorizes. Roaring64NavigableMap has no public way to reach or add its high buckets,
+// so bitmap containers are copied in and out of the words whole, 1024 words at a time, through its serialized form:
+// a flag, the number of buckets, then each bucket's high 32 bits and its RoaringBitmap.
+public class DenseBitset {
+    // Filters covering at least this share of the id range are worth combining as words
+    static final double DENSITY = 0.25;
+
+    // The ids of a container, and the words of a bitmap container
+    private static final int CONTAINER_BITS = 1 << 16;
+    private static final int CONTAINER_WORDS = CONTAINER_BITS >>> 6;
+    // Containers holding up to this many ids are arrays
+    private static final int ARRAY_MAX = 4096;
+
+    private final long base;
+    private final long[] words;
+
+    private DenseBitset(long base, int length) {
+        this.base = base;
+        this.words = new long[length];
+    }
+
+    // True when the ids from start to end (exclusive) fit in a single array of words
+    static boolean fits(long start, long end) {
+        return end > start && (end - (start & -64L) + 63) >>> 6 < Integer.MAX_VALUE - 8;
+    }
+
+    // The ids of the bitmap from start to end (exclusive), ids outside of it are left out.
+    // The words start at a multiple of 64, so containers land on whole words.
+    static DenseBitset of(Roaring64NavigableMap bitmap, long start, long end) {
+        long base = start & -64L;
+        DenseBitset bitset = new DenseBitset(base, (int) ((end - base + 63) >>> 6));
+        bitset.copy(bitmap);
+        bitset.clear(start, end);
+        return bitset;
+    }
+
+    private void set(long id) {
+        long offset = id - base;
+        if (offset >= 0 && offset < (long) words.length << 6) {
+            words[(int) (offset >>> 6)] |= 1L << offset;
+        }
+    }
+
+    // Copies the containers overlapping the words, bitmap containers a word at a time
+    private void copy(Roaring64NavigableMap bitmap) {
+        long end = base + ((long) words.length << 6);
+        try {
+            ByteArrayOutputStream serialized = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, bitmap.serializedSizeInBytes()));
+            try (DataOutputStream out = new DataOutputStream(serialized)) {
+                bitmap.serialize(out);
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(serialized.toByteArray()));
+            in.readBoolean();
+            int buckets = in.readInt();
+            RoaringBitmap bucket = new RoaringBitmap();
+            long[] chunkWords = new long[CONTAINER_WORDS];
+            for (int i = 0; i < buckets; i++) {
+                long high = Integer.toUnsignedLong(in.readInt()) << 32;
+                bucket.deserialize(in);
+                if (high + (1L << 32) <= base || high >= end) {
+                    continue;
+                }
+                ContainerPointer containers = bucket.getContainerPointer();
+                for (Container container = containers.getContainer(); container != null; containers.advance(), container = containers.getContainer()) {
+                    long chunk = high | ((long) containers.key() << 16);
+                    if (chunk + CONTAINER_BITS <= base || chunk >= end) {
+                        continue;
+                    }
+                    if (container instanceof ArrayContainer) {
+                        CharIterator ids = container.getCharIterator();
+                        while (ids.hasNext()) {
+                            set(chunk | ids.next());
+                        }
+                        continue;
+                    }
+                    container.toBitmapContainer().toLongBuffer().flip().get(chunkWords);
+                    // Chunks and words both start at multiples of 64, so they line up word for word
+                    long offset = (chunk - base) >> 6;
+                    int from = (int) Math.max(0, -offset);
+                    int to = (int) Math.min(CONTAINER_WORDS, words.length - offset);
+                    System.arraycopy(chunkWords, from, words, (int) (offset + from), to - from);
+                }
+            }
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    // Clears the bits of the ids before start and from end on, which share their first and last words
+    private void clear(long start, long end) {
+        long offset = start - base;
+        words[0] &= -1L << offset;
+        long last = end - base;
+        if ((last & 63) != 0) {
+            words[words.length - 1] &= -1L >>> (64 - (last & 63));
+        }
+    }
+
+    DenseBitset copy() {
+        DenseBitset copy = new DenseBitset(base, words.length);
+        System.arraycopy(words, 0, copy.words, 0, words.length);
+        return copy;
+    }
+
+    void and(DenseBitset other) {
+        long[] others = other.words;
+        for (int i = 0; i < words.length; i++) {
+            words[i] &= others[i];
+        }
+    }
+
+    void andNot(DenseBitset other) {
+        long[] others = other.words;
+        for (int i = 0; i < words.length; i++) {
+            words[i] &= ~others[i];
+        }
+    }
+
+    void or(DenseBitset other) {
+        long[] others = other.words;
+        for (int i = 0; i < words.length; i++) {
+            words[i] |= others[i];
+        }
+    }
+
+    long cardinality() {
+        long cardinality = 0;
+        for (long word : words) {
+            cardinality += Long.bitCount(word);
+        }
+        return cardinality;
+    }
+
+    // Rebuilds the containers a chunk of 1024 words at a time, as bitmap containers over the words
+    // or arrays when they hold few ids, and reads the bitmap back from its high buckets serialized
+    Roaring64NavigableMap toBitmap() {
+        long end = base + ((long) words.length << 6);
+        List<Integer> highs = new ArrayList<>();
+        List<RoaringBitmap> buckets = new ArrayList<>();
+        RoaringBitmap bucket = null;
+        for (long chunk = base & -CONTAINER_BITS; chunk < end; chunk += CONTAINER_BITS) {
+            long[] chunkWords = new long[CONTAINER_WORDS];
+            long offset = (chunk - base) >> 6;
+            int from = (int) Math.max(0, -offset);
+            int to = (int) Math.min(CONTAINER_WORDS, words.length - offset);
+            System.arraycopy(words, (int) (offset + from), chunkWords, from, to - from);
+            int cardinality = 0;
+            for (long word : chunkWords) {
+                cardinality += Long.bitCount(word);
+            }
+            if (cardinality == 0) {
+                continue;
+            }
+            Container container;
+            if (cardinality <= ARRAY_MAX) {
+                char[] ids = new char[cardinality];
+                int size = 0;
+                for (int i = 0; i < CONTAINER_WORDS; i++) {
+                    long word = chunkWords[i];
+                    while (word != 0) {
+                        ids[size++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+                container = new ArrayContainer(cardinality, ids);
+            } else {
+                container = new BitmapContainer(chunkWords, cardinality);
+            }
+            int high = (int) (chunk >>> 32);
+            if (bucket == null || highs.get(highs.size() - 1) != high) {
+                bucket = new RoaringBitmap();
+                highs.add(high);
+                buckets.add(bucket);
+            }
+            bucket.append((char) (chunk >>> 16), container);
+        }
+
+        try {
+            ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(serialized)) {
+                out.writeBoolean(false);
+                out.writeInt(buckets.size());
+                for (int i = 0; i < buckets.size(); i++) {
+                    out.writeInt(highs.get(i));
+                    buckets.get(i).serialize(out);
+                }
+            }
+            Roaring64NavigableMap bitmap = new Roaring64NavigableMap();
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(serialized.toByteArray()))) {
+                bitmap.deserialize(in);
+            }
+            return bitmap;
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.maxdemarzi;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Replicates through a directory every instance can reach, one file per entry named <millis>-<instance>-<sequence>.
+// An entry is written under a hidden name and moved into place, so peers never read half of one.
+// Entries outlive the cached bitmaps they hold for no longer than a refresh, then the first instance to see them removes them.
+public class DirectoryTransport implements ReplicationTransport {
+    static final long EXPIRY = TimeUnit.MINUTES.toMillis(10);
+
+    private final Path directory;
+    private final String instance;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Set<String> received = new HashSet<>();
+
+    public DirectoryTransport(Path directory, String instance) {
+        this.directory = directory;
+        this.instance = instance;
+    }
+
+    @Override
+    public void publish(byte[] entry) throws IOException {
+        Files.createDirectories(directory);
+        String name = System.currentTimeMillis() + "-" + instance + "-" + sequence.incrementAndGet();
+        Path hidden = directory.resolve("." + name);
+        Files.write(hidden, entry);
+        Files.move(hidden, directory.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public synchronized List<byte[]> receive() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyList();
+        }
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.filter(file -> !file.getFileName().toString().startsWith(".")).sorted().collect(Collectors.toList());
+        }
+
+        List<byte[]> entries = new ArrayList<>();
+        Set<String> present = new HashSet<>();
+        long expired = System.currentTimeMillis() - EXPIRY;
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            String[] parts = name.split("-", 2);
+            if (parts.length < 2 || !parts[0].chars().allMatch(Character::isDigit)) {
+                continue;
+            }
+            if (Long.parseLong(parts[0]) < expired) {
+                Files.deleteIfExists(file);
+                continue;
+            }
+            present.add(name);
+            if (parts[1].startsWith(instance + "-") || !received.add(name)) {
+                continue;
+            }
+            try {
+                entries.add(Files.readAllBytes(file));
+            } catch (NoSuchFileException removed) {
+                // Expired and removed by another instance in the meantime
+            }
+        }
+        // Forget the entries that are gone, so the set stays as small as the directory
+        received.retainAll(present);
+        return entries;
+    }
+}
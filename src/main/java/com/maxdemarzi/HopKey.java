@@ -0,0 +1,50 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Label;
+
+import java.util.Objects;
+
+// Identifies the nodes of a label that reach, over a typed relationship,
+// a neighbor of another label holding a property value
+public final class HopKey {
+    public final Label label;
+    public final String relationship;
+    public final Direction direction;
+    public final Label neighbor;
+    public final String property;
+    public final Object value;
+
+    public HopKey(Label label, String relationship, Direction direction, Label neighbor, String property, Object value) {
+        this.label = label;
+        this.relationship = relationship;
+        this.direction = direction;
+        this.neighbor = neighbor;
+        this.property = property;
+        this.value = value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        HopKey hopKey = (HopKey) o;
+        return label.name().equals(hopKey.label.name()) &&
+                relationship.equals(hopKey.relationship) &&
+                direction == hopKey.direction &&
+                neighbor.name().equals(hopKey.neighbor.name()) &&
+                property.equals(hopKey.property) &&
+                value.equals(hopKey.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(label.name(), relationship, direction, neighbor.name(), property, value);
+    }
+
+    @Override
+    public String toString() {
+        return label.name() + (direction == Direction.INCOMING ? "<-[:" : "-[:") + relationship
+                + (direction == Direction.OUTGOING ? "]->" : "]-") + neighbor.name() + "." + property + "=" + value;
+    }
+}
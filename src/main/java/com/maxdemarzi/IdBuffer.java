@@ -0,0 +1,49 @@
+package com.maxdemarzi;
+
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.util.Arrays;
+
+// Buffers node ids and adds them to a bitmap in sorted batches instead of one add per id.
+// Runs of consecutive ids are added as a single range.
+public class IdBuffer {
+    private static final int BATCH = 4096;
+
+    private final Roaring64NavigableMap bitmap;
+    private final long[] ids = new long[BATCH];
+    private int size;
+
+    public IdBuffer(Roaring64NavigableMap bitmap) {
+        this.bitmap = bitmap;
+    }
+
+    public void add(long id) {
+        ids[size++] = id;
+        if (size == BATCH) {
+            flush();
+        }
+    }
+
+    public void flush() {
+        Arrays.sort(ids, 0, size);
+        int i = 0;
+        while (i < size) {
+            int j = i;
+            while (j + 1 < size && ids[j + 1] <= ids[j] + 1) {
+                j++;
+            }
+            // Roaring 0.9.0 creates a MutableRoaringBitmap when a range starts a new high bucket,
+            // which can't be combined with the others, so the first id always goes in with addLong
+            bitmap.addLong(ids[i]);
+            if (j > i && (ids[i] >>> 32) == (ids[j] >>> 32)) {
+                bitmap.add(ids[i] + 1, ids[j] + 1);
+            } else {
+                for (int k = i + 1; k <= j; k++) {
+                    bitmap.addLong(ids[k]);
+                }
+            }
+            i = j + 1;
+        }
+        size = 0;
+    }
+}
@@ -0,0 +1,181 @@
+package com.maxdemarzi;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.apache.commons.lang3.tuple.Pair;
+import org.eclipse.collections.api.bimap.BiMap;
+import org.neo4j.graphdb.Label;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Counts how often pairs and triples of plain property filters are must haves of the same path,
+// and keeps the AND of the hot ones as a cached bitmap the planner uses in place of its filters.
+// A hot combination is built in the background, from the bitmaps of the query that made it hot when it has them.
+// Intersections live as long as the bitmaps they were built from would before refreshing,
+// and take up to an eighth of the bytes the caches of the database are budgeted.
+public class Intersections {
+    // A combination is materialized once it was seen this many times
+    static final long HOT = 10;
+    // Paths with more filters than this only look at their first ones
+    private static final int MAX_FILTERS = 8;
+
+    private final DatabaseCaches database;
+
+    private final Cache<Pair<Label, Set<Map<String, Object>>>, AtomicLong> counts = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .expireAfterAccess(60, TimeUnit.MINUTES)
+            .build();
+
+    final AsyncCache<Pair<Label, Set<Map<String, Object>>>, Roaring64NavigableMap> intersectionCache;
+
+    Intersections(DatabaseCaches database) {
+        this.database = database;
+        this.intersectionCache = Caffeine.newBuilder()
+                .maximumWeight(database.share(4))
+                .weigher(DatabaseCaches::weigh)
+                .expireAfterWrite(10, TimeUnit.MINUTES)
+                .executor(Procedures.loaders)
+                .recordStats()
+                .buildAsync();
+    }
+
+    // The cached intersections covering as many of the items as possible, largest first, with the items each one covers
+    List<Pair<Set<String>, Roaring64NavigableMap>> find(Label label, Collection<String> items, BiMap<Integer, HashMap<String, Object>> inverse) {
+        List<Pair<Set<String>, Roaring64NavigableMap>> found = new ArrayList<>();
+        List<String> candidates = candidates(items, inverse);
+        for (int size = 3; size >= 2; size--) {
+            for (List<String> combination : combinations(candidates, size)) {
+                if (!candidates.containsAll(combination)) {
+                    continue;
+                }
+                // Read through the map, so looking for intersections doesn't count as cache hits and misses
+                CompletableFuture<Roaring64NavigableMap> cached = intersectionCache.asMap().get(key(label, combination, inverse));
+                if (cached != null && cached.isDone() && !cached.isCompletedExceptionally()) {
+                    found.add(Pair.of(new HashSet<>(combination), cached.join()));
+                    candidates.removeAll(combination);
+                }
+            }
+        }
+        return found;
+    }
+
+    // Counts the combinations of the items, and builds the hot ones from the bitmaps of the query
+    void record(Label label, Collection<String> items, BiMap<Integer, HashMap<String, Object>> inverse,
+                       Map<Map<String, Object>, Pair<Roaring64NavigableMap, Long>> shared) {
+        List<String> candidates = candidates(items, inverse);
+        for (int size = 2; size <= 3; size++) {
+            for (List<String> combination : combinations(candidates, size)) {
+                Pair<Label, Set<Map<String, Object>>> key = key(label, combination, inverse);
+                long seen = counts.get(key, k -> new AtomicLong()).incrementAndGet();
+                if (seen < HOT || intersectionCache.asMap().containsKey(key)) {
+                    continue;
+                }
+                CompletableFuture<Roaring64NavigableMap> intersection = new CompletableFuture<>();
+                if (intersectionCache.asMap().putIfAbsent(key, intersection) != null) {
+                    continue;
+                }
+                // Built from the bitmaps this query loaded when it has all of them, otherwise evaluated on its own
+                List<Pair<Roaring64NavigableMap, Long>> bitmaps = new ArrayList<>();
+                for (Map<String, Object> filter : key.getRight()) {
+                    Pair<Roaring64NavigableMap, Long> filterValueIds = shared.get(filter);
+                    if (filterValueIds != null) {
+                        bitmaps.add(filterValueIds);
+                    }
+                }
+                // The common pool, since evaluating loads bitmaps on the loader pool
+                CompletableFuture.supplyAsync(() -> bitmaps.size() == key.getRight().size() ? intersect(bitmaps) : evaluate(label, key.getRight()),
+                        ForkJoinPool.commonPool())
+                        .whenComplete((bitmap, exception) -> {
+                            if (exception == null) {
+                                intersection.complete(bitmap);
+                            } else {
+                                intersection.completeExceptionally(exception);
+                            }
+                        });
+            }
+        }
+    }
+
+    private Roaring64NavigableMap evaluate(Label label, Set<Map<String, Object>> filters) {
+        HashMap<String, Object> query = new HashMap<>();
+        query.put("not", false);
+        ArrayList<HashMap<String, Object>> and = new ArrayList<>();
+        for (Map<String, Object> filter : filters) {
+            HashMap<String, Object> entry = new HashMap<>(filter);
+            entry.put("not", false);
+            and.add(entry);
+        }
+        query.put("and", and);
+        Roaring64NavigableMap intersection = Procedures.filter(database, label, query, QueryProfile.NONE);
+        intersection.runOptimize();
+        return intersection;
+    }
+
+    private static Roaring64NavigableMap intersect(List<Pair<Roaring64NavigableMap, Long>> bitmaps) {
+        bitmaps.sort(Comparator.comparing(Pair::getRight));
+        Roaring64NavigableMap intersection = new Roaring64NavigableMap();
+        intersection.or(bitmaps.get(0).getLeft());
+        for (Pair<Roaring64NavigableMap, Long> bitmap : bitmaps.subList(1, bitmaps.size())) {
+            intersection.and(bitmap.getLeft());
+        }
+        intersection.runOptimize();
+        return intersection;
+    }
+
+    // Drops the intersections using a property that changed
+    void invalidate(Label label, String property) {
+        intersectionCache.synchronous().asMap().keySet().removeIf(key -> key.getLeft().name().equals(label.name())
+                && key.getRight().stream().anyMatch(filter -> property.equals(filter.get("property"))));
+    }
+
+    public long size() {
+        return intersectionCache.synchronous().estimatedSize();
+    }
+
+    // Only plain property filters, in a fixed order so a combination is always found the same way
+    private static List<String> candidates(Collection<String> items, BiMap<Integer, HashMap<String, Object>> inverse) {
+        List<String> candidates = new ArrayList<>();
+        for (String item : items) {
+            if (Prober.isProbeable(inverse.get(Integer.valueOf(item)))) {
+                candidates.add(item);
+            }
+        }
+        candidates.sort(Comparator.comparing(Integer::valueOf));
+        return new ArrayList<>(candidates.subList(0, Math.min(candidates.size(), MAX_FILTERS)));
+    }
+
+    // The same filter with or without a not has the same node ids
+    private static Pair<Label, Set<Map<String, Object>>> key(Label label, List<String> combination, BiMap<Integer, HashMap<String, Object>> inverse) {
+        Set<Map<String, Object>> filters = new HashSet<>();
+        for (String item : combination) {
+            Map<String, Object> filterKey = new HashMap<>(inverse.get(Integer.valueOf(item)));
+            filterKey.remove("not");
+            filters.add(filterKey);
+        }
+        return Pair.of(label, filters);
+    }
+
+    private static List<List<String>> combinations(List<String> items, int size) {
+        List<List<String>> combinations = new ArrayList<>();
+        combine(items, size, 0, new ArrayList<>(), combinations);
+        return combinations;
+    }
+
+    private static void combine(List<String> items, int size, int from, List<String> current, List<List<String>> combinations) {
+        if (current.size() == size) {
+            combinations.add(new ArrayList<>(current));
+            return;
+        }
+        for (int i = from; i < items.size(); i++) {
+            current.add(items.get(i));
+            combine(items, size, i + 1, current, combinations);
+            current.remove(current.size() - 1);
+        }
+    }
+}
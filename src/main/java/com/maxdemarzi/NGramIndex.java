@@ -0,0 +1,100 @@
+package com.maxdemarzi;
+
+import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
+import org.neo4j.values.storable.TextValue;
+import org.neo4j.values.storable.Value;
+import org.roaringbitmap.RoaringBitmap;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A trigram posting index over the string values of a ValueDictionary.
+// Every trigram gets a bitmap of the codes of the values that contain it.
+// A CONTAINS or SUFFIX search intersects the postings of its own trigrams and only verifies
+// the values that survive, instead of checking every index entry.
+public class NGramIndex {
+    private static final int N = 3;
+    // Appended to every value, so the end of a value has trigrams of its own for SUFFIX searches
+    private static final char END = '\u0000';
+
+    private final ValueDictionary dictionary;
+    private final long version;
+    private final Value[] values;
+    private final LongObjectHashMap<RoaringBitmap> postings = new LongObjectHashMap<>();
+
+    public NGramIndex(ValueDictionary dictionary) {
+        this.dictionary = dictionary;
+        this.version = dictionary.version();
+        this.values = dictionary.values();
+
+        for (int code = 0; code < values.length; code++) {
+            if (values[code] instanceof TextValue) {
+                String padded = ((TextValue) values[code]).stringValue() + END;
+                for (int i = 0; i + N <= padded.length(); i++) {
+                    postings.getIfAbsentPut(gram(padded, i), RoaringBitmap::new).add(code);
+                }
+            }
+        }
+    }
+
+    // The postings and their trigrams, the values are the dictionary's
+    public long sizeInBytes() {
+        long bytes = postings.size() * 8L;
+        for (RoaringBitmap posting : postings.values()) {
+            bytes += posting.getLongSizeInBytes();
+        }
+        return bytes;
+    }
+
+    // True when the dictionary has given out new codes since this index was built
+    public boolean isStale(ValueDictionary current) {
+        return current != dictionary || dictionary.version() != version;
+    }
+
+    public Roaring64NavigableMap contains(String text) {
+        List<Value> matches = new ArrayList<>();
+        for (int code : candidates(text)) {
+            if (values[code] instanceof TextValue && ((TextValue) values[code]).stringValue().contains(text)) {
+                matches.add(values[code]);
+            }
+        }
+        return dictionary.get(matches);
+    }
+
+    public Roaring64NavigableMap endsWith(String text) {
+        List<Value> matches = new ArrayList<>();
+        for (int code : candidates(text + END)) {
+            if (values[code] instanceof TextValue && ((TextValue) values[code]).stringValue().endsWith(text)) {
+                matches.add(values[code]);
+            }
+        }
+        return dictionary.get(matches);
+    }
+
+    // Text shorter than a trigram can't narrow anything down, so every value is a candidate
+    private RoaringBitmap candidates(String text) {
+        if (text.length() < N) {
+            RoaringBitmap codes = new RoaringBitmap();
+            codes.add(0L, values.length);
+            return codes;
+        }
+        RoaringBitmap candidates = null;
+        for (int i = 0; i + N <= text.length(); i++) {
+            RoaringBitmap posting = postings.get(gram(text, i));
+            if (posting == null) {
+                return new RoaringBitmap();
+            }
+            if (candidates == null) {
+                candidates = posting.clone();
+            } else {
+                candidates.and(posting);
+            }
+        }
+        return candidates;
+    }
+
+    private static long gram(String text, int i) {
+        return ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+    }
+}
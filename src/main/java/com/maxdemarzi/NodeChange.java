@@ -0,0 +1,54 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.Label;
+import org.neo4j.values.storable.Value;
+import org.neo4j.values.storable.Values;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// The labels and watched property values of one node before and after a committed transaction
+public class NodeChange {
+    final long nodeId;
+    final Set<String> assignedLabels = new HashSet<>();
+    final Set<String> removedLabels = new HashSet<>();
+    final Set<String> labelsBefore = new HashSet<>();
+    final Set<String> labelsAfter = new HashSet<>();
+    final Map<String, Value> before = new HashMap<>();
+    final Map<String, Value> after = new HashMap<>();
+
+    NodeChange(long nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    void changed(String property, Object previous, Object current) {
+        before.put(property, previous == null ? null : Values.of(previous));
+        after.put(property, current == null ? null : Values.of(current));
+    }
+
+    void unchanged(String property, Object current) {
+        Value value = current == null ? null : Values.of(current);
+        before.put(property, value);
+        after.put(property, value);
+    }
+
+    boolean isChanged(String property) {
+        return before.containsKey(property);
+    }
+
+    // The value the node had for the property while it had the label, or null
+    public Value before(Label label, String property) {
+        return labelsBefore.contains(label.name()) ? before.get(property) : null;
+    }
+
+    // The value the node has for the property now if it has the label, or null
+    public Value after(Label label, String property) {
+        return labelsAfter.contains(label.name()) ? after.get(property) : null;
+    }
+}
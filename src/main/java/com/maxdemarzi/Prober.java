@@ -0,0 +1,223 @@
+package com.maxdemarzi;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.internal.kernel.api.*;
+import org.neo4j.internal.schema.IndexDescriptor;
+import org.neo4j.io.pagecache.tracing.cursor.PageCursorTracer;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.impl.coreapi.InternalTransaction;
+import org.neo4j.values.storable.Value;
+import org.roaringbitmap.longlong.LongIterator;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+// Checks the values of a filter directly on a few candidate nodes instead of loading its bitmap.
+// Before loading, every filter gets an estimate of how many nodes it matches and what loading it would cost,
+// so a path can start from its cheapest filter and probe the rest once the candidates are few enough.
+public class Prober {
+    // Reading a property from a node costs about as much as adding this many ids to a bitmap
+    static final long PROBE_COST = 8;
+    // Index seeks are counted up to this many entries when estimating
+    private static final int COUNT_LIMIT = 10_000;
+
+    // How many nodes a filter is expected to match and what loading its bitmap is expected to cost
+    public static class Estimate {
+        public final long matches;
+        public final long loadCost;
+
+        Estimate(long matches, long loadCost) {
+            this.matches = matches;
+            this.loadCost = loadCost;
+        }
+    }
+
+    // Only plain property filters can be checked on a node
+    static boolean isProbeable(Map<String, Object> filter) {
+        return !filter.containsKey("label") && !filter.containsKey("relationship") && !filter.containsKey("segment")
+                && !filter.containsKey("atLeast") && !filter.containsKey("exists");
+    }
+
+    static boolean isCached(DatabaseCaches database, Label label, Map<String, Object> filter) {
+        if (!isProbeable(filter)) {
+            return true;
+        }
+        // Read through the map, so planning doesn't count as cache hits and misses
+        for (Object value : (List<Object>) filter.get("values")) {
+            if (!isLoaded(database.valueCache.asMap().get(Triple.of(label, (String) filter.get("property"), value)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLoaded(CompletableFuture<Roaring64NavigableMap> future) {
+        return future != null && future.isDone() && !future.isCompletedExceptionally();
+    }
+
+    // Estimates every filter in a single transaction
+    static Map<String, Estimate> estimate(DatabaseCaches database, Label label, Map<String, Map<String, Object>> filters) {
+        Map<String, Estimate> estimates = new HashMap<>();
+        try (Transaction tx = database.graph.beginTx()) {
+            KernelTransaction ktx = ((InternalTransaction) tx).kernelTransaction();
+            TokenRead tokenRead = ktx.tokenRead();
+            int labelId = tokenRead.nodeLabel(label.name());
+            long labelCount = labelId == TokenRead.NO_TOKEN ? 0 : ktx.dataRead().countsForNode(labelId);
+
+            for (Map.Entry<String, Map<String, Object>> entry : filters.entrySet()) {
+                Map<String, Object> filter = entry.getValue();
+                if (!isProbeable(filter)) {
+                    estimates.put(entry.getKey(), new Estimate(labelCount, 0));
+                    continue;
+                }
+                String property = (String) filter.get("property");
+                int propertyKeyId = tokenRead.propertyKey(property);
+                IndexDescriptor index = Procedures.getOnlineIndex(ktx, labelId, propertyKeyId);
+                // Read through the maps, so estimates don't count as cache hits and misses
+                ValueDictionary dictionary = database.dictionaryCache.asMap().get(Pair.of(label, property));
+                ColumnStore column = database.columnCache.asMap().get(Pair.of(label, property));
+
+                long matches = 0;
+                long loadCost = 0;
+                for (Object value : (List<Object>) filter.get("values")) {
+                    CompletableFuture<Roaring64NavigableMap> cached = database.valueCache.asMap().get(Triple.of(label, property, value));
+                    if (isLoaded(cached)) {
+                        matches += cached.join().getLongCardinality();
+                        continue;
+                    }
+                    if (propertyKeyId == TokenRead.NO_TOKEN) {
+                        continue;
+                    }
+                    IndexQuery predicate = Procedures.getPredicate(propertyKeyId, value);
+                    if (predicate instanceof IndexQuery.StringContainsPredicate || predicate instanceof IndexQuery.StringSuffixPredicate) {
+                        matches += labelCount;
+                        loadCost += labelCount;
+                    } else if (dictionary != null) {
+                        long count = dictionary.count(predicate);
+                        matches += count;
+                        loadCost += count;
+                    } else if (column != null) {
+                        // Comparing a value in the column costs far less than reading it from a node
+                        matches += labelCount;
+                        loadCost += labelCount / PROBE_COST;
+                    } else if (index != null) {
+                        long count = count(ktx, index, predicate);
+                        matches += count;
+                        loadCost += count;
+                    } else {
+                        // Without an index every node of the label is read
+                        matches += labelCount;
+                        loadCost += labelCount * PROBE_COST;
+                    }
+                }
+                estimates.put(entry.getKey(), new Estimate(Math.min(matches, labelCount), loadCost));
+            }
+        } catch (Exception exception) {
+            database.logger.warn("Unable to estimate the filters, loading all of them", exception);
+            return null;
+        }
+        return estimates;
+    }
+
+    // Counts the index entries up to the limit, past it the count is taken from the index statistics
+    private static long count(KernelTransaction ktx, IndexDescriptor index, IndexQuery predicate) throws Exception {
+        Read read = ktx.dataRead();
+        long count = 0;
+        try (NodeValueIndexCursor cursor = ktx.cursors().allocateNodeValueIndexCursor(PageCursorTracer.NULL)) {
+            read.nodeIndexSeek(read.indexReadSession(index), cursor, IndexQueryConstraints.unconstrained(), predicate);
+            while (cursor.next()) {
+                if (++count == COUNT_LIMIT) {
+                    SchemaRead schemaRead = ktx.schemaRead();
+                    long size = schemaRead.indexSize(index);
+                    double selectivity = schemaRead.indexUniqueValuesSelectivity(index);
+                    return predicate instanceof IndexQuery.ExactPredicate && selectivity > 0
+                            ? Math.max(COUNT_LIMIT, (long) (1 / selectivity)) : Math.max(COUNT_LIMIT, size);
+                }
+            }
+        }
+        return count;
+    }
+
+    // The candidates that have the label and the property, either of which may be null to skip its check
+    static Roaring64NavigableMap having(DatabaseCaches database, Label label, String property, Roaring64NavigableMap candidates) {
+        Roaring64NavigableMap nodeIds = new Roaring64NavigableMap();
+        IdBuffer ids = new IdBuffer(nodeIds);
+        try (Transaction tx = database.graph.beginTx()) {
+            KernelTransaction ktx = ((InternalTransaction) tx).kernelTransaction();
+            int labelId = label == null ? TokenRead.ANY_LABEL : ktx.tokenRead().nodeLabel(label.name());
+            int propertyKeyId = property == null ? TokenRead.NO_TOKEN : ktx.tokenRead().propertyKey(property);
+            if ((label != null && labelId == TokenRead.NO_TOKEN) || (property != null && propertyKeyId == TokenRead.NO_TOKEN)) {
+                return nodeIds;
+            }
+
+            Read read = ktx.dataRead();
+            CursorFactory cursors = ktx.cursors();
+            try (NodeCursor node = cursors.allocateNodeCursor(PageCursorTracer.NULL);
+                 PropertyCursor properties = cursors.allocatePropertyCursor(PageCursorTracer.NULL, ktx.memoryTracker())) {
+                LongIterator iterator = candidates.getLongIterator();
+                while (iterator.hasNext()) {
+                    read.singleNode(iterator.next(), node);
+                    if (!node.next() || (label != null && !node.hasLabel(labelId))) {
+                        continue;
+                    }
+                    if (property != null) {
+                        node.properties(properties);
+                        if (!properties.seekProperty(propertyKeyId)) {
+                            continue;
+                        }
+                    }
+                    ids.add(node.nodeReference());
+                }
+            }
+        }
+        ids.flush();
+        return nodeIds;
+    }
+
+    // The candidates holding any of the values of the filter, read with one reused node and property cursor
+    static Roaring64NavigableMap probe(DatabaseCaches database, Map<String, Object> filter, Roaring64NavigableMap candidates) {
+        Roaring64NavigableMap nodeIds = new Roaring64NavigableMap();
+        IdBuffer ids = new IdBuffer(nodeIds);
+        try (Transaction tx = database.graph.beginTx()) {
+            KernelTransaction ktx = ((InternalTransaction) tx).kernelTransaction();
+            int propertyKeyId = ktx.tokenRead().propertyKey((String) filter.get("property"));
+            if (propertyKeyId == TokenRead.NO_TOKEN) {
+                return nodeIds;
+            }
+            List<IndexQuery> predicates = new ArrayList<>();
+            for (Object value : (List<Object>) filter.get("values")) {
+                predicates.add(Procedures.getPredicate(propertyKeyId, value));
+            }
+
+            Read read = ktx.dataRead();
+            CursorFactory cursors = ktx.cursors();
+            try (NodeCursor node = cursors.allocateNodeCursor(PageCursorTracer.NULL);
+                 PropertyCursor properties = cursors.allocatePropertyCursor(PageCursorTracer.NULL, ktx.memoryTracker())) {
+                LongIterator iterator = candidates.getLongIterator();
+                while (iterator.hasNext()) {
+                    read.singleNode(iterator.next(), node);
+                    if (node.next()) {
+                        node.properties(properties);
+                        if (properties.seekProperty(propertyKeyId)) {
+                            Value value = properties.propertyValue();
+                            for (IndexQuery predicate : predicates) {
+                                if (predicate.acceptsValue(value)) {
+                                    ids.add(node.nodeReference());
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (Exception exception) {
+            throw new RuntimeException(exception);
+        }
+        ids.flush();
+        return nodeIds;
+    }
+}
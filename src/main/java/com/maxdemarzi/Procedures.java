@@ -1,19 +1,30 @@
 package com.maxdemarzi;
 
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.maxdemarzi.metrics.Metrics;
 import com.maxdemarzi.quine.BooleanExpression;
+import com.maxdemarzi.results.BatchResult;
+import com.maxdemarzi.results.BitmapResult;
+import com.maxdemarzi.results.ChangesResult;
+import com.maxdemarzi.results.ColumnResult;
+import com.maxdemarzi.results.CountResult;
+import com.maxdemarzi.results.FacetResult;
+import com.maxdemarzi.results.MapResult;
+import com.maxdemarzi.results.PartitionResult;
+import com.maxdemarzi.results.ProfileResult;
+import com.maxdemarzi.results.SegmentResult;
 import com.maxdemarzi.results.SizeAndNodeResult;
-import org.apache.commons.lang3.tuple.MutableTriple;
+import com.maxdemarzi.results.StandingResult;
+import com.maxdemarzi.results.WarmResult;
+import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.lang3.tuple.Triple;
 import org.eclipse.collections.api.bimap.BiMap;
 import org.eclipse.collections.api.bimap.MutableBiMap;
 import org.eclipse.collections.impl.bimap.mutable.HashBiMap;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.*;
-import org.neo4j.internal.helpers.collection.Iterators;
-import org.neo4j.internal.helpers.collection.Pair;
+import org.neo4j.exceptions.KernelException;
 import org.neo4j.internal.kernel.api.*;
+import org.neo4j.internal.kernel.api.exceptions.schema.IndexNotFoundKernelException;
 import org.neo4j.internal.schema.*;
 import org.neo4j.io.pagecache.tracing.cursor.PageCursorTracer;
 import org.neo4j.kernel.api.KernelTransaction;
@@ -21,11 +32,21 @@ import org.neo4j.kernel.impl.coreapi.InternalTransaction;
 import org.neo4j.logging.Log;
 import org.neo4j.procedure.*;
 import org.neo4j.values.storable.*;
+import org.roaringbitmap.longlong.LongIterator;
 import org.roaringbitmap.longlong.Roaring64NavigableMap;
 
 import java.text.NumberFormat;
+import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.*;
@@ -38,16 +59,11 @@ public class Procedures {
 
     @Context public Transaction transaction;
 
-    // This field gives us a static GraphDatabaseService to use within our cache
-    static GraphDatabaseService graph;
-
     // This gives us a log instance that outputs messages to the
     // standard log, normally found under `data/log/neo4j.log`
     @Context
     public Log log;
 
-    static Log logger;
-
     // Check Java Regex : https://www.freeformatter.com/java-regex-tester.html
     private static final String leftBracketOrParen = "[(|\\[]";
     private static final String rightBracketOrParen = "[)|\\]]";
@@ -56,249 +72,1481 @@ public class Procedures {
     private static final Pattern number = Pattern.compile(numberPattern);
     private static final Pattern numberOrDateRange =  Pattern.compile("(^" + leftBracketOrParen + ")(" + numberPattern + "|" + ISODatePattern + ")?,(" + numberPattern + "|" + ISODatePattern + ")?(" + rightBracketOrParen +")$");
 
-    // This cache stores the node ids by Dimension and Value
-    public static final LoadingCache<Triple<Label, String, Object>, Roaring64NavigableMap> valueCache = Caffeine.newBuilder()
-            .expireAfterAccess(60, TimeUnit.MINUTES)
-            .refreshAfterWrite(10, TimeUnit.MINUTES)
-            .build(Procedures::getValues);
+    // Cache misses are loaded on this bounded pool, so all the misses of a query are fetched in parallel
+    static final ExecutorService loaders = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+        Thread thread = new Thread(runnable, "boolean-filter-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    static Roaring64NavigableMap getValues(Triple<Label, String, Object> key) {
-        Roaring64NavigableMap bitmap = new Roaring64NavigableMap();
-        Label label = key.getLeft();
-        String property = key.getMiddle();
-        Object value = key.getRight();
+    // The cache key of one value of a filter. A filter may name another label and a relationship type:
+    // {label: 'Customer', relationship: 'PLACED', direction: 'INCOMING', property: 'segment', values: [...]}
+    // matches the nodes with an INCOMING PLACED relationship from a Customer with one of the values,
+    // and a label without a relationship matches nodes that also have that label.
+    static Object getFilterKey(Label label, Map<String, Object> filter, Object value) {
+        String property = (String) filter.get("property");
+        Label other = filter.containsKey("label") ? Label.label((String) filter.get("label")) : label;
+        String relationship = (String) filter.get("relationship");
+        if (relationship == null) {
+            return Triple.of(other, property, value);
+        }
+        Direction direction = Direction.valueOf(((String) filter.getOrDefault("direction", "BOTH")).toUpperCase());
+        return new HopKey(label, relationship, direction, other, property, value);
+    }
+
+    static boolean isExactValue(Object value) {
         String valueAsString = value.toString();
+        return !valueAsString.startsWith("*") && !valueAsString.endsWith("*")
+                && !numberOrDateRange.matcher(valueAsString).matches();
+    }
 
-        // Number or date ranges
-        Matcher m = numberOrDateRange.matcher(valueAsString);
-        if (m.matches()) {
-            try (Transaction tx = graph.beginTx()) {
+    // Loads the bitmaps of many exact values of the same property in a single transaction.
+    // When the values cover a good part of the distinct values in the index,
+    // one index scan is cheaper than seeking each value.
+    static Map<Triple<Label, String, Object>, Roaring64NavigableMap> getExactValues(DatabaseCaches database, Label label, String property, List<Object> values) {
+        long start = System.nanoTime();
+        Map<Triple<Label, String, Object>, Roaring64NavigableMap> bitmaps = new HashMap<>();
+        ValueDictionary dictionary = database.dictionaryCache.getIfPresent(Pair.of(label, property));
+        for (Object value : values) {
+            bitmaps.put(Triple.of(label, property, value),
+                    dictionary == null ? new Roaring64NavigableMap() : dictionary.get(List.of(Values.of(value))));
+        }
+        if (dictionary != null) {
+            Metrics.record(Metrics.VALUES_BULK, System.nanoTime() - start);
+            return bitmaps;
+        }
 
-                Value lowerBound = null;
-                Value upperBound = null;
-                boolean includeUpper = true;
-                boolean includeLower = true;
+        try (Transaction tx = database.graph.beginTx()) {
+            KernelTransaction ktx = ((InternalTransaction) tx).kernelTransaction();
+            TokenRead tokenRead = ktx.tokenRead();
+            SchemaRead schemaRead = ktx.schemaRead();
+            Read read = ktx.dataRead();
+            int labelId = tokenRead.nodeLabel(label.name());
+            int propertyKeyId = tokenRead.propertyKey(property);
+            if (labelId == TokenRead.NO_TOKEN || propertyKeyId == TokenRead.NO_TOKEN) {
+                return bitmaps;
+            }
 
-                String from = m.group(2);
-                String to = m.group(13);
+            Map<Value, IdBuffer> byValue = new HashMap<>();
+            for (Object value : values) {
+                byValue.put(Values.of(value), new IdBuffer(bitmaps.get(Triple.of(label, property, value))));
+            }
 
-                if (from != null) {
-                    if (number.matcher(from).matches()) {
-                        lowerBound = Values.numberValue(NumberFormat.getInstance().parse(from));
-                    } else {
-                        lowerBound = DateValue.parse(from);
+            IndexDescriptor index = getOnlineIndex(ktx, labelId, propertyKeyId);
+            boolean scanned = false;
+            if (index != null && values.size() * 4L >= schemaRead.indexUniqueValuesSelectivity(index) * schemaRead.indexSize(index)) {
+                try (NodeValueIndexCursor cursor = ktx.cursors().allocateNodeValueIndexCursor(PageCursorTracer.NULL)) {
+                    read.nodeIndexScan(read.indexReadSession(index), cursor, IndexQueryConstraints.unorderedValues());
+                    scanned = true;
+                    while (cursor.next()) {
+                        if (!cursor.hasValue()) {
+                            // This index can't give us the values, so seek them one at a time instead
+                            bitmaps.values().forEach(Roaring64NavigableMap::clear);
+                            scanned = false;
+                            break;
+                        }
+                        IdBuffer ids = byValue.get(cursor.propertyValue(0));
+                        if (ids != null) {
+                            ids.add(cursor.nodeReference());
+                        }
                     }
                 }
-                if (to != null) {
-                    if (number.matcher(to).matches()) {
-                        upperBound = Values.numberValue(NumberFormat.getInstance().parse(to));
-                    } else {
-                        upperBound = DateValue.parse(to);
+            }
+
+            if (!scanned) {
+                if (index != null) {
+                    // One cursor is reused for every seek
+                    IndexReadSession session = read.indexReadSession(index);
+                    try (NodeValueIndexCursor cursor = ktx.cursors().allocateNodeValueIndexCursor(PageCursorTracer.NULL)) {
+                        for (Map.Entry<Value, IdBuffer> entry : byValue.entrySet()) {
+                            read.nodeIndexSeek(session, cursor, IndexQueryConstraints.unconstrained(), IndexQuery.exact(propertyKeyId, entry.getKey()));
+                            while (cursor.next()) {
+                                entry.getValue().add(cursor.nodeReference());
+                            }
+                        }
                     }
+                } else {
+                    // Without an index, a single label scan finds all the values
+                    PropertyScanner.forEachValue(ktx, labelId, propertyKeyId, (value, nodeId) -> {
+                        IdBuffer ids = byValue.get(value);
+                        if (ids != null) {
+                            ids.add(nodeId);
+                        }
+                    });
                 }
+            }
+            byValue.values().forEach(IdBuffer::flush);
+        } catch(Exception exception ){
+            database.logger.error(Arrays.stream(exception.getStackTrace())
+                    .map(Objects::toString)
+                    .collect(Collectors.joining("\n")));
+        }
+        Metrics.record(Metrics.VALUES_BULK, System.nanoTime() - start);
+        return bitmaps;
+    }
 
-                // A square bracket ([ ]) indicates that the range is inclusive on that side; a parenthesis (( )) means it is exclusive
-                // (a,b) means a < x < b
-                // [a,b] means a <= x <= b
-                // (a,b] means a < x <= b
-                // a or b can be null
+    static IndexDescriptor getOnlineIndex(KernelTransaction ktx, int labelId, int propertyKeyId) throws IndexNotFoundKernelException {
+        if (labelId == TokenRead.NO_TOKEN || propertyKeyId == TokenRead.NO_TOKEN) {
+            return null;
+        }
+        SchemaRead schemaRead = ktx.schemaRead();
+        Iterator<IndexDescriptor> indexes = schemaRead.index(SchemaDescriptor.forLabel(labelId, propertyKeyId));
+        while (indexes.hasNext()) {
+            IndexDescriptor index = indexes.next();
+            if (schemaRead.indexGetState(index) == InternalIndexState.ONLINE) {
+                return index;
+            }
+        }
+        return null;
+    }
 
-                if (m.group(1).equals("(")) {
-                    includeLower = false;
-                }
-                if (m.group(24).equals(")")) {
-                    includeUpper = false;
+    static Roaring64NavigableMap getValues(DatabaseCaches database, Triple<Label, String, Object> key) {
+        long start = System.nanoTime();
+        Roaring64NavigableMap bitmap = new Roaring64NavigableMap();
+        Label label = key.getLeft();
+        String property = key.getMiddle();
+        Object value = key.getRight();
+        String histogram = Metrics.VALUES_EXACT;
+
+        try (Transaction tx = database.graph.beginTx()) {
+            KernelTransaction ktx = ((InternalTransaction) tx).kernelTransaction();
+            TokenRead tokenRead = ktx.tokenRead();
+
+            int labelId = tokenRead.nodeLabel(label.name());
+            int propertyKeyId = tokenRead.propertyKey(property);
+
+            if (labelId != TokenRead.NO_TOKEN && propertyKeyId != TokenRead.NO_TOKEN) {
+                IndexQuery predicate = getPredicate(propertyKeyId, value);
+                if (predicate instanceof IndexQuery.StringContainsPredicate) {
+                    histogram = Metrics.VALUES_WILDCARD;
+                    bitmap = database.getNGramIndex(label, property).contains(((IndexQuery.StringContainsPredicate) predicate).contains().stringValue());
+                } else if (predicate instanceof IndexQuery.StringSuffixPredicate) {
+                    histogram = Metrics.VALUES_WILDCARD;
+                    bitmap = database.getNGramIndex(label, property).endsWith(((IndexQuery.StringSuffixPredicate) predicate).suffix().stringValue());
+                } else {
+                    if (predicate instanceof IndexQuery.RangePredicate) {
+                        histogram = Metrics.VALUES_RANGE;
+                    } else if (!(predicate instanceof IndexQuery.ExactPredicate)) {
+                        histogram = Metrics.VALUES_WILDCARD;
+                    }
+                    // Date ranges of partitioned properties only touch the months they overlap
+                    TimePartitions partitions = database.partitionCache.getIfPresent(Pair.of(label, property));
+                    // Exact, prefix and range values are a contiguous range of codes in the dictionary
+                    ValueDictionary dictionary = database.dictionaryCache.getIfPresent(Pair.of(label, property));
+                    // Projected properties are scanned in memory instead of through an index or the label
+                    ColumnStore column = database.columnCache.getIfPresent(Pair.of(label, property));
+                    if (partitions != null && TimePartitions.accepts(predicate)) {
+                        bitmap = partitions.get(predicate);
+                    } else if (dictionary != null) {
+                        bitmap = dictionary.get(predicate);
+                    } else if (column != null) {
+                        bitmap = column.get(predicate);
+                    } else {
+                        seek(ktx, labelId, predicate, bitmap);
+                    }
                 }
+            }
+        } catch(Exception exception ){
+            database.logger.error(Arrays.stream(exception.getStackTrace())
+                    .map(Objects::toString)
+                    .collect(Collectors.joining("\n")));
+        }
+        Metrics.record(histogram, System.nanoTime() - start);
+        return bitmap;
+    }
 
-                KernelTransaction ktx = ((InternalTransaction) tx).kernelTransaction();
-                TokenRead tokenRead = ktx.tokenRead();
-                SchemaRead schemaRead = ktx.schemaRead();
-                Read read = ktx.dataRead();
-                CursorFactory cursors = ktx.cursors();
+    // Turns a filter value into the index predicate it stands for:
+    // a number or date range, a PREFIX*, *SUFFIX or *CONTAINS* string search, or an exact value
+    static IndexQuery getPredicate(int propertyKeyId, Object value) throws ParseException {
+        String valueAsString = value.toString();
 
-                int labelId = tokenRead.nodeLabel(label.name());
-                int propertyKeyId = tokenRead.propertyKey(property);
+        // Number or date ranges
+        Matcher m = numberOrDateRange.matcher(valueAsString);
+        if (m.matches()) {
+            Value lowerBound = null;
+            Value upperBound = null;
+            boolean includeUpper = true;
+            boolean includeLower = true;
 
-                LabelSchemaDescriptor schema = SchemaDescriptor.forLabel(labelId, propertyKeyId);
-                IndexDescriptor indexDescriptor = Iterators.single(schemaRead.index(schema));
-                IndexReadSession indexSession = read.indexReadSession(indexDescriptor);
-                IndexQuery.RangePredicate<?> predicate =  IndexQuery.range(propertyKeyId, lowerBound, includeLower, upperBound, includeUpper);
+            String from = m.group(2);
+            String to = m.group(13);
 
-                try (NodeValueIndexCursor cursor = cursors.allocateNodeValueIndexCursor(PageCursorTracer.NULL)) {
-                    read.nodeIndexSeek(indexSession, cursor, IndexQueryConstraints.unconstrained(), predicate);
-                    while (cursor.next()) {
-                        bitmap.add(cursor.nodeReference());
-                    }
+            if (from != null) {
+                if (number.matcher(from).matches()) {
+                    lowerBound = Values.numberValue(NumberFormat.getInstance().parse(from));
+                } else {
+                    lowerBound = DateValue.parse(from);
                 }
+            }
+            if (to != null) {
+                if (number.matcher(to).matches()) {
+                    upperBound = Values.numberValue(NumberFormat.getInstance().parse(to));
+                } else {
+                    upperBound = DateValue.parse(to);
+                }
+            }
 
-            } catch(Exception exception ){
-                logger.error(Arrays.stream(exception.getStackTrace())
-                        .map(Objects::toString)
-                        .collect(Collectors.joining("\n")));
+            // A square bracket ([ ]) indicates that the range is inclusive on that side; a parenthesis (( )) means it is exclusive
+            // (a,b) means a < x < b
+            // [a,b] means a <= x <= b
+            // (a,b] means a < x <= b
+            // a or b can be null
+
+            if (m.group(1).equals("(")) {
+                includeLower = false;
+            }
+            if (m.group(24).equals(")")) {
+                includeUpper = false;
             }
-            return bitmap;
+
+            return IndexQuery.range(propertyKeyId, lowerBound, includeLower, upperBound, includeUpper);
         }
 
         // Exact or Contains String Search
-        StringSearchMode ssm = StringSearchMode.EXACT;
-        if(valueAsString.startsWith("*")) {
-            if(valueAsString.endsWith("*")) {
-                ssm = StringSearchMode.CONTAINS;
-                valueAsString = valueAsString.substring(1, valueAsString.length() - 1);
-            } else {
-                ssm = StringSearchMode.SUFFIX;
-                valueAsString = valueAsString.substring(1);
+        if (valueAsString.startsWith("*")) {
+            if (valueAsString.length() > 1 && valueAsString.endsWith("*")) {
+                return IndexQuery.stringContains(propertyKeyId, Values.stringValue(valueAsString.substring(1, valueAsString.length() - 1)));
             }
-        } else if(valueAsString.endsWith("*")) {
-            ssm = StringSearchMode.PREFIX;
-            valueAsString = valueAsString.substring(0, valueAsString.length() - 1);
+            return IndexQuery.stringSuffix(propertyKeyId, Values.stringValue(valueAsString.substring(1)));
+        } else if (valueAsString.endsWith("*")) {
+            return IndexQuery.stringPrefix(propertyKeyId, Values.stringValue(valueAsString.substring(0, valueAsString.length() - 1)));
         }
+        return IndexQuery.exact(propertyKeyId, value);
+    }
 
-        try (Transaction tx = graph.beginTx()) {
-            ResourceIterator<Node> nodes;
-            if (ssm.equals(StringSearchMode.EXACT)) {
-                nodes = tx.findNodes(label, property, value);
-            } else {
-                nodes = tx.findNodes(label, property, valueAsString, ssm);
-            }
-            while(nodes.hasNext()) {
-                bitmap.add(nodes.next().getId());
+    // Adds the ids of the nodes of the label matching the predicate to the bitmap,
+    // using a single index seek when there is an online index, and a label scan otherwise
+    static void seek(KernelTransaction ktx, int labelId, IndexQuery predicate, Roaring64NavigableMap bitmap) throws KernelException {
+        IdBuffer ids = new IdBuffer(bitmap);
+        IndexDescriptor index = getOnlineIndex(ktx, labelId, predicate.propertyKeyId());
+        if (index != null) {
+            Read read = ktx.dataRead();
+            try (NodeValueIndexCursor cursor = ktx.cursors().allocateNodeValueIndexCursor(PageCursorTracer.NULL)) {
+                read.nodeIndexSeek(read.indexReadSession(index), cursor, IndexQueryConstraints.unconstrained(), predicate);
+                while (cursor.next()) {
+                    ids.add(cursor.nodeReference());
+                }
             }
+        } else {
+            PropertyScanner.forEachValue(ktx, labelId, predicate.propertyKeyId(), (value, nodeId) -> {
+                if (predicate.acceptsValue(value)) {
+                    ids.add(nodeId);
+                }
+            });
         }
-        return bitmap;
+        ids.flush();
     }
 
 
     @Procedure(name = "com.maxdemarzi.boolean.filter", mode = Mode.READ)
-    @Description("CALL com.maxdemarzi.boolean.filter(label, query, limit, offset)")
+    @Description("CALL com.maxdemarzi.boolean.filter(label, query, limit, offset, orderBy, descending, includeSize)")
     public Stream<SizeAndNodeResult> BooleanFilter(
+            @Name(value = "label") String labelName,
+            @Name(value = "query") Map<String, Object> query,
+            @Name(value = "limit", defaultValue = "50") Long limit,
+            @Name(value = "offset", defaultValue = "0") Long offset,
+            @Name(value = "orderBy", defaultValue = "") String orderBy,
+            @Name(value = "descending", defaultValue = "false") Boolean descending,
+            @Name(value = "includeSize", defaultValue = "true") Boolean includeSize) {
+
+        DatabaseCaches database = initialize();
+
+        Label label = Label.label(labelName);
+        // Without the size, only the first offset + limit matching node ids are ever found
+        if (!includeSize && orderBy.isEmpty()) {
+            long start = System.nanoTime();
+            List<Node> results = lazyFilter(database, label, query, offset + limit).stream()
+                    .skip(offset)
+                    .map(transaction::getNodeById)
+                    .collect(Collectors.toList());
+            Metrics.record(Metrics.FILTER_MATERIALIZATION, System.nanoTime() - start);
+            return Stream.of(new SizeAndNodeResult(results, null));
+        }
+
+        Roaring64NavigableMap combinedNodeIds = filter(database, label, query, QueryProfile.NONE);
+
+        // Return nodes AND the total count of nodes found.
+        long size = combinedNodeIds.getLongCardinality();
+        List<Node> results = orderBy.isEmpty()
+                ? getNodes(combinedNodeIds, limit, offset)
+                : getSortedNodes(database, label, combinedNodeIds, orderBy, descending, limit, offset);
+
+        return Stream.of(new SizeAndNodeResult(results, size));
+    }
+
+    @Procedure(name = "com.maxdemarzi.boolean.bitmap", mode = Mode.READ)
+    @Description("CALL com.maxdemarzi.boolean.bitmap(label, query, runOptimize)")
+    public Stream<BitmapResult> BooleanBitmap(
+            @Name(value = "label") String labelName,
+            @Name(value = "query") Map<String, Object> query,
+            @Name(value = "runOptimize", defaultValue = "false") Boolean runOptimize) {
+
+        DatabaseCaches database = initialize();
+
+        Roaring64NavigableMap combinedNodeIds = filter(database, Label.label(labelName), query, QueryProfile.NONE);
+
+        // Return the node ids instead of the nodes
+        return Stream.of(new BitmapResult(combinedNodeIds.getLongCardinality(), Bitmaps.serialize(combinedNodeIds, runOptimize)));
+    }
+
+    @Procedure(name = "com.maxdemarzi.boolean.filterAnd", mode = Mode.READ)
+    @Description("CALL com.maxdemarzi.boolean.filterAnd(label, query, bitmaps, limit, offset)")
+    public Stream<SizeAndNodeResult> BooleanFilterAnd(
+            @Name(value = "label") String labelName,
+            @Name(value = "query") Map<String, Object> query,
+            @Name(value = "bitmaps") List<Object> bitmaps,
+            @Name(value = "limit", defaultValue = "50") Long limit,
+            @Name(value = "offset", defaultValue = "0") Long offset) {
+
+        DatabaseCaches database = initialize();
+
+        Roaring64NavigableMap combinedNodeIds = filter(database, Label.label(labelName), query, QueryProfile.NONE);
+
+        // Only keep the node ids that are also in every bitmap we were given
+        for (Object bitmap : bitmaps) {
+            combinedNodeIds.and(Bitmaps.deserialize(Bitmaps.asBytes(bitmap)));
+        }
+
+        long size = combinedNodeIds.getLongCardinality();
+        List<Node> results = getNodes(combinedNodeIds, limit, offset);
+
+        return Stream.of(new SizeAndNodeResult(results, size));
+    }
+
+    @Procedure(name = "com.maxdemarzi.boolean.segment.define", mode = Mode.READ)
+    @Description("CALL com.maxdemarzi.boolean.segment.define(name, label, query)")
+    public Stream<SegmentResult> BooleanSegmentDefine(
+            @Name(value = "name") String name,
+            @Name(value = "label") String labelName,
+            @Name(value = "query") Map<String, Object> query) {
+
+        DatabaseCaches database = initialize();
+
+        return Stream.of(asResult(database.segments.define(name, Label.label(labelName), query)));
+    }
+
+    @Procedure(name = "com.maxdemarzi.boolean.segment.drop", mode = Mode.READ)
+    @Description("CALL com.maxdemarzi.boolean.segment.drop(name)")
+    public Stream<SegmentResult> BooleanSegmentDrop(@Name(value = "name") String name) {
+        DatabaseCaches database = initialize();
+
+        Segments.Segment segment = database.segments.drop(name);
+        return segment == null ? Stream.empty() : Stream.of(asResult(segment));
+    }
+
+    @Procedure(name = "com.maxdemarzi.boolean.segment.list", mode = Mode.READ)
+    @Description("CALL com.maxdemarzi.boolean.segment.list()")
+    public Stream<SegmentResult> BooleanSegmentList() {
+        DatabaseCaches database = initialize();
+
+        return database.segments.list().stream().map(this::asResult);
+    }
+
+    private SegmentResult asResult(Segments.Segment segment) {
+        return new SegmentResult(segment.name, segment.label.name(), segment.size(), segment.millis());
+    }
+
+    @Procedure(name = "com.maxdemarzi.boolean.standing.register", mode = Mode.READ)
+    @Description("CALL com.maxdemarzi.boolean.standing.register(name, label, query)")
+    public Stream<StandingResult> BooleanStandingRegister(
+            @Name(value = "name") String name,
+            @Name(value = "label") String labelName,
+            @Name(value = "query") Map<String, Object> query) {
+
+        DatabaseCaches database = initialize();
+
+        StandingQueries.StandingQuery standing = database.standing.register(name, Label.label(labelName), query);
+        return Stream.of(new StandingResult(name, labelName, standing.size(), standing.token()));
+    }
+
+    @Procedure(name = "com.maxdemarzi.boolean.standing.changes", mode = Mode.READ)
+    @Description("CALL com.maxdemarzi.boolean.standing.changes(name, token)")
+    public Stream<ChangesResult> BooleanStandingChanges(
+            @Name(value = "name") String name,
+            @Name(value = "token") Long token) {
+
+        DatabaseCaches database = initialize();
+
+        StandingQueries.Change change = database.standing.get(name).since(token);
+        return Stream.of(new ChangesResult(asList(change.added), asList(change.removed), change.token, change.reset));
+    }
+
+    @Procedure(name = "com.maxdemarzi.boolean.standing.drop", mode = Mode.READ)
+    @Description("CALL com.maxdemarzi.boolean.standing.drop(name)")
+    public Stream<StandingResult> BooleanStandingDrop(@Name(value = "name") String name) {
+        DatabaseCaches database = initialize();
+
+        StandingQueries.StandingQuery standing = database.standing.drop(name);
+        return standing == null ? Stream.empty()
+                : Stream.of(new StandingResult(name, standing.label.name(), standing.size(), standing.token()));
+    }
+
+    private static List<Long> asList(Roaring64NavigableMap nodeIds) {
+        List<Long> ids = new ArrayList<>();
+        nodeIds.forEach(ids::add);
+        return ids;
+    }
+
+    @Procedure(name = "com.maxdemarzi.boolean.batch", mode = Mode.READ)
+    @Description("CALL com.maxdemarzi.boolean.batch(label, queries, bitmaps)")
+    public Stream<BatchResult> BooleanBatch(
+            @Name(value = "label") String labelName,
+            @Name(value = "queries") List<Map<String, Object>> queries,
+            @Name(value = "bitmaps", defaultValue = "false") Boolean bitmaps) {
+
+        DatabaseCaches database = initialize();
+
+        Label label = Label.label(labelName);
+        // Every filter is built once for the whole batch, and the queries are evaluated in parallel
+        Map<Map<String, Object>, Pair<Roaring64NavigableMap, Long>> shared = new ConcurrentHashMap<>();
+        List<CompletableFuture<BatchResult>> results = queries.stream()
+                .map(entry -> CompletableFuture.supplyAsync(() -> {
+                    Roaring64NavigableMap nodeIds = filter(database, label, (Map<String, Object>) entry.get("query"), QueryProfile.NONE, shared);
+                    return new BatchResult(String.valueOf(entry.get("id")), nodeIds.getLongCardinality(),
+                            bitmaps ? Bitmaps.serialize(nodeIds) : null);
+                }, ForkJoinPool.commonPool()))
+                .collect(Collectors.toList());
+
+        return results.stream().map(CompletableFuture::join);
+    }
+
+    @Procedure(name = "com.maxdemarzi.boolean.profile", mode = Mode.READ)
+    @Description("CALL com.maxdemarzi.boolean.profile(label, query, limit, offset)")
+    public Stream<ProfileResult> BooleanProfile(
             @Name(value = "label") String labelName,
             @Name(value = "query") Map<String, Object> query,
             @Name(value = "limit", defaultValue = "50") Long limit,
             @Name(value = "offset", defaultValue = "0") Long offset) {
 
-        //initialize the graph
-        if (graph == null) {
-            graph = db;
-            logger = log;
+        DatabaseCaches database = initialize();
+
+        QueryProfile profile = new QueryProfile();
+        Roaring64NavigableMap combinedNodeIds = filter(database, Label.label(labelName), query, profile);
+
+        long start = System.nanoTime();
+        long size = combinedNodeIds.getLongCardinality();
+        List<Node> results = getNodes(combinedNodeIds, limit, offset);
+        profile.time("materialization", System.nanoTime() - start);
+
+        return Stream.of(profile.toResult(results, size));
+    }
+
+    @Procedure(name = "com.maxdemarzi.boolean.stats", mode = Mode.READ)
+    @Description("CALL com.maxdemarzi.boolean.stats()")
+    public Stream<MapResult> BooleanStats() {
+        DatabaseCaches database = initialize();
+
+        // The caches are those of the database the procedure is called in, the latencies are process wide
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("database", database.name);
+        stats.put("budget", database.budget);
+        stats.put("valueCache", Metrics.cacheStats(database.valueCache.synchronous()));
+        stats.put("hopCache", Metrics.cacheStats(database.hopCache.synchronous()));
+        stats.put("intersectionCache", Metrics.cacheStats(database.intersections.intersectionCache.synchronous()));
+        stats.put("presenceCache", Metrics.cacheStats(database.presenceCache));
+        if (database.replication != null) {
+            stats.put("replication", database.replication.stats());
         }
+        stats.put("compactions", Compactor.compactions());
+        stats.put("compactedBytes", Compactor.savedBytes());
+        stats.put("latencies", Metrics.latencies());
+        return Stream.of(new MapResult(stats));
+    }
+
+    @Procedure(name = "com.maxdemarzi.boolean.count", mode = Mode.READ)
+    @Description("CALL com.maxdemarzi.boolean.count(label, query, approximate, sample)")
+    public Stream<CountResult> BooleanCount(
+            @Name(value = "label") String labelName,
+            @Name(value = "query") Map<String, Object> query,
+            @Name(value = "approximate", defaultValue = "false") Boolean approximate,
+            @Name(value = "sample", defaultValue = "0.1") Double sample) {
 
-        List<Node> results;
-        long size = 0L;
+        DatabaseCaches database = initialize();
 
         Label label = Label.label(labelName);
+        if (!approximate) {
+            return Stream.of(new CountResult(filter(database, label, query, QueryProfile.NONE).getLongCardinality(), 0L, false));
+        }
+        // The query is only evaluated on a sample of the node ids, and the count scaled up
+        Sample sampled = Sample.of(database, label, sample);
+        long[] estimate = sampled.estimate(filter(database, label, query, QueryProfile.NONE, new ConcurrentHashMap<>(), sampled.mask));
+        return Stream.of(new CountResult(estimate[0], estimate[1], !sampled.isComplete()));
+    }
+
+    @Procedure(name = "com.maxdemarzi.boolean.facet", mode = Mode.READ)
+    @Description("CALL com.maxdemarzi.boolean.facet(label, property, query, approximate, sample)")
+    public Stream<FacetResult> BooleanFacet(
+            @Name(value = "label") String labelName,
+            @Name(value = "property") String property,
+            @Name(value = "query", defaultValue = "{}") Map<String, Object> query,
+            @Name(value = "approximate", defaultValue = "false") Boolean approximate,
+            @Name(value = "sample", defaultValue = "0.1") Double sample) {
+
+        DatabaseCaches database = initialize();
 
+        Label label = Label.label(labelName);
+        ValueDictionary dictionary = database.dictionaryCache.get(Pair.of(label, property));
+
+        if (approximate) {
+            // Every value is counted on the same sample of the node ids, and each count scaled up
+            Sample sampled = Sample.of(database, label, sample);
+            Roaring64NavigableMap nodeIds = query.isEmpty() ? sampled.mask
+                    : filter(database, label, query, QueryProfile.NONE, new ConcurrentHashMap<>(), sampled.mask);
+            return dictionary.intersections(nodeIds).entrySet().stream()
+                    .map(entry -> {
+                        long[] estimate = sampled.estimate(entry.getValue());
+                        return new FacetResult(entry.getKey().asObjectCopy(), estimate[0], estimate[1]);
+                    })
+                    .filter(result -> result.count > 0);
+        }
+
+        // Without a query every node counts, otherwise only the ones matching it
+        Roaring64NavigableMap nodeIds = query.isEmpty() ? null : filter(database, label, query, QueryProfile.NONE);
+        return dictionary.counts(nodeIds).entrySet().stream()
+                .filter(entry -> entry.getValue() > 0)
+                .map(entry -> new FacetResult(entry.getKey().asObjectCopy(), entry.getValue(), 0L));
+    }
+
+    @Procedure(name = "com.maxdemarzi.boolean.partition", mode = Mode.READ)
+    @Description("CALL com.maxdemarzi.boolean.partition(label, property)")
+    public Stream<PartitionResult> BooleanPartition(
+            @Name(value = "label") String labelName,
+            @Name(value = "property") String property) {
+
+        DatabaseCaches database = initialize();
+
+        Label label = Label.label(labelName);
+        // Date ranges of this property are answered from its monthly partitions from here on
+        TimePartitions partitions = database.partitionCache.get(Pair.of(label, property));
+        database.invalidate(label, property);
+        return partitions.partitions().stream()
+                .map(partition -> new PartitionResult(partition.month.toString(), partition.nodes(),
+                        partition.minId(), partition.maxId(), partition.optimized));
+    }
+
+    @Procedure(name = "com.maxdemarzi.boolean.column", mode = Mode.READ)
+    @Description("CALL com.maxdemarzi.boolean.column(label, property)")
+    public Stream<ColumnResult> BooleanColumn(
+            @Name(value = "label") String labelName,
+            @Name(value = "property") String property) {
+
+        DatabaseCaches database = initialize();
+
+        Label label = Label.label(labelName);
+        // Filters on this property are answered from its in memory column from here on
+        ColumnStore column = database.columnCache.get(Pair.of(label, property));
+        database.chargeColumns();
+        return Stream.of(new ColumnResult(labelName, property, column.nodes(), column.type(), column.sizeInBytes()));
+    }
+
+    @Procedure(name = "com.maxdemarzi.boolean.warm", mode = Mode.READ)
+    @Description("CALL com.maxdemarzi.boolean.warm(label, properties)")
+    public Stream<WarmResult> BooleanWarm(
+            @Name(value = "label") String labelName,
+            @Name(value = "properties") List<String> properties) {
+
+        DatabaseCaches database = initialize();
+
+        Label label = Label.label(labelName);
+        AtomicInteger done = new AtomicInteger();
+
+        // Each property is scanned once, in parallel, and every distinct value goes into the cache in bulk
+        List<CompletableFuture<WarmResult>> warming = properties.stream()
+                .map(property -> CompletableFuture.supplyAsync(() -> {
+                    long start = System.nanoTime();
+                    ValueDictionary dictionary;
+                    try {
+                        dictionary = ValueDictionary.build(database, label, property);
+                    } catch (Exception exception) {
+                        throw new CompletionException(exception);
+                    }
+                    // Warmed properties are kept current from here on
+                    database.dictionaryCache.put(Pair.of(label, property), dictionary);
+                    Compactor.compact(dictionary);
+                    Map<Object, Roaring64NavigableMap> values = dictionary.bitmaps();
+
+                    Map<Triple<Label, String, Object>, Roaring64NavigableMap> bitmaps = new HashMap<>();
+                    Roaring64NavigableMap nodeIds = new Roaring64NavigableMap();
+                    long bytes = 0;
+                    for (Map.Entry<Object, Roaring64NavigableMap> entry : values.entrySet()) {
+                        bitmaps.put(Triple.of(label, property, entry.getKey()), entry.getValue());
+                        nodeIds.or(entry.getValue());
+                        bytes += entry.getValue().getLongSizeInBytes();
+                    }
+                    database.valueCache.synchronous().putAll(bitmaps);
+                    bitmaps.forEach((key, bitmap) -> Compactor.compact(database.valueCache, key, bitmap));
+
+                    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    database.logger.info("Warmed " + labelName + "." + property + " with " + values.size() + " values, "
+                            + bytes + " bytes in " + millis + " ms (" + done.incrementAndGet() + " of " + properties.size() + ")");
+                    return new WarmResult(property, (long) values.size(), nodeIds.getLongCardinality(), bytes, millis);
+                }, loaders))
+                .collect(Collectors.toList());
+
+        return warming.stream().map(CompletableFuture::join);
+    }
+
+    // The caches of the database this procedure is called in
+    private DatabaseCaches initialize() {
+        return DatabaseCaches.of(db, log);
+    }
+
+    private List<Node> getNodes(Roaring64NavigableMap nodeIds, Long limit, Long offset) {
+        long start = System.nanoTime();
+        List<Node> nodes = StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                nodeIds.iterator(), Spliterator.CONCURRENT), false)
+                .skip(offset).limit(limit)
+                .map(transaction::getNodeById)
+                .collect(Collectors.toList());
+        Metrics.record(Metrics.FILTER_MATERIALIZATION, System.nanoTime() - start);
+        return nodes;
+    }
+
+    // Only the first offset + limit nodes in property order are found, from the sorted dictionary of the property
+    private List<Node> getSortedNodes(DatabaseCaches database, Label label, Roaring64NavigableMap nodeIds, String orderBy, boolean descending, Long limit, Long offset) {
+        long start = System.nanoTime();
+        ValueDictionary dictionary = database.dictionaryCache.get(Pair.of(label, orderBy));
+        List<Node> nodes = dictionary.top(nodeIds, offset + limit, descending).stream()
+                .skip(offset)
+                .map(transaction::getNodeById)
+                .collect(Collectors.toList());
+        Metrics.record(Metrics.FILTER_MATERIALIZATION, System.nanoTime() - start);
+        return nodes;
+    }
+
+    static Roaring64NavigableMap filter(DatabaseCaches database, Label label, Map<String, Object> query, QueryProfile profile) {
+        return filter(database, label, query, profile, new ConcurrentHashMap<>());
+    }
+
+    // The shared map holds the bitmap and cardinality of every filter already built,
+    // so a filter used by several paths, or by several queries of a batch, is only built once
+    static Roaring64NavigableMap filter(DatabaseCaches database, Label label, Map<String, Object> query, QueryProfile profile,
+                                        Map<Map<String, Object>, Pair<Roaring64NavigableMap, Long>> shared) {
+        return filter(database, label, query, profile, shared, null);
+    }
+
+    // With a mask, only the node ids inside it are looked at, which is how approximate counts sample the ids
+    static Roaring64NavigableMap filter(DatabaseCaches database, Label label, Map<String, Object> query, QueryProfile profile,
+                                        Map<Map<String, Object>, Pair<Roaring64NavigableMap, Long>> shared,
+                                        Roaring64NavigableMap mask) {
+        long start = System.nanoTime();
         Roaring64NavigableMap combinedNodeIds = new Roaring64NavigableMap();
 
         MutableBiMap<HashMap<String, Object>, Integer> expressions = new HashBiMap<>();
-        String formula = getFormula(query, "", expressions);
+        List<String> paths = getPaths(query, expressions, profile);
         BiMap<Integer, HashMap<String, Object>> inverse = expressions.inverse();
+        long evaluation = System.nanoTime();
 
-        //log.debug("Formula: " + formula);
+        // Filters that would cost more to load than to check on the candidates of their paths are left for later
+        Map<String, Prober.Estimate> estimates = getEstimates(database, label, paths, inverse);
+        Set<String> deferred = getDeferred(paths, estimates);
 
-        // Use the expression to find the required paths
-        BooleanExpression boEx = new BooleanExpression(formula);
-        boEx.doTabulationMethod();
-        boEx.doQuineMcCluskey();
-        boEx.doPetricksMethod();
+        Set<Object> misses = new HashSet<>();
+        Map<Object, Roaring64NavigableMap> bitmaps = getBitmaps(database, label, paths, inverse, deferred, misses, profile);
+        profile.time("loading", System.nanoTime() - evaluation);
 
-        for (String path : boEx.getPathExpressions()) {
+        // With a single path, a date range on a partitioned property bounds the node ids of every other filter
+        List<Long> window = paths.size() == 1 ? getPartitionWindow(database, label, paths.get(0), inverse) : null;
+        if (window != null) {
+            Roaring64NavigableMap windowIds = Bitmaps.range(window.get(0), window.get(1) + 1);
+            if (mask != null) {
+                windowIds.and(mask);
+            }
+            mask = windowIds;
+        }
+
+        // When every path starts from a filter covering most of its ids, the query is combined as flat words
+        if (deferred.isEmpty() && mask == null) {
+            Roaring64NavigableMap dense = denseFilter(database, label, paths, inverse, bitmaps, misses, shared, profile);
+            if (dense != null) {
+                Metrics.record(Metrics.FILTER_EVALUATION, System.nanoTime() - evaluation);
+                return dense;
+            }
+        }
+
+        for (String path : paths) {
             // We will collect the valid node ids for this path here
             Roaring64NavigableMap nodeIds = new Roaring64NavigableMap();
 
             // Figure out which filters are a "must have" and which are a "must not"
-            String[] ids = path.split("[!&]");
-            char[] rels = path.replaceAll("[^&^!]", "").toCharArray();
+            Pair<Set<String>, Set<String>> split = splitPath(path);
+            Set<String> mustHave = split.getLeft();
+            Set<String> mustNot = split.getRight();
 
-            Set<String> mustHave = new HashSet<>();
-            Set<String> mustNot = new HashSet<>();
-
-            // Using the ANDs and NOTs, figure out what we must have and must not
-            if (path.startsWith("!")) {
-                mustNot.add(ids[0]);
-            } else {
-                mustHave.add(ids[0]);
-            }
+            // Get the bitmaps of node ids from each filter into an array
+            ArrayList<Triple<String, Roaring64NavigableMap, Long>> filters = new ArrayList<>();
 
-            for (int i = 0; i < rels.length; i++) {
-                if (rels[i] == '&') {
-                    mustHave.add(ids[1 + i]);
-                } else {
-                    mustNot.add(ids[1 + i]);
+            // Hot combinations of these filters are already intersected, though only over all of their node ids
+            Set<String> covered = new HashSet<>();
+            if (mask == null) {
+                for (Pair<Set<String>, Roaring64NavigableMap> intersection : database.intersections.find(label, mustHave, inverse)) {
+                    covered.addAll(intersection.getLeft());
+                    filters.add(Triple.of(String.join("&", intersection.getLeft()), intersection.getRight(), intersection.getRight().getLongCardinality()));
                 }
             }
-
-            // Get the bitmaps of node ids from each filter into an array
-            ArrayList<Pair<Roaring64NavigableMap, Long>> filters = new ArrayList<>();
-
             for (String item : mustHave) {
-                Map<String, Object> filter = inverse.get(Integer.valueOf(item));
-                MutableTriple<Label, String, Object> key = MutableTriple.of(label, (String)filter.get("property"), null);
-
-                // Since the values can be inside an array, we are treating these as belonging to any in the array
-                ArrayList<Object> values = (ArrayList<Object>) filter.get("values");
-                Roaring64NavigableMap filterValueIds = new Roaring64NavigableMap();
-                for (Object value : values) {
-                    key.setRight(value);
-                    // Join them together
-                    Roaring64NavigableMap dimensionValueIds = valueCache.get(key);
-                    if (dimensionValueIds != null) {
-                        filterValueIds.or(dimensionValueIds);
-                    }
+                if (deferred.contains(item) || covered.contains(item)) {
+                    continue;
                 }
-                filters.add(Pair.of(filterValueIds, filterValueIds.getLongCardinality()));
+                Pair<Roaring64NavigableMap, Long> filterValueIds = getFilterValueIds(database, label, inverse.get(Integer.valueOf(item)), bitmaps, misses, shared, mask, window, path, item, false, profile);
+                filters.add(Triple.of(item, filterValueIds.getLeft(), filterValueIds.getRight()));
+            }
+            if (mask == null) {
+                database.intersections.record(label, mustHave, inverse, shared);
             }
 
+            start = System.nanoTime();
+
             // Sort bitmaps in Ascending order by cardinality
-            filters.sort(Comparator.comparing(Pair::other));
+            filters.sort(Comparator.comparing(Triple::getRight));
 
             // Initialize the smallest bitmap as our starting point
             if (filters.size() > 0) {
-                nodeIds.or(filters.remove(0).first());
+                Triple<String, Roaring64NavigableMap, Long> first = filters.remove(0);
+                nodeIds.or(first.getMiddle());
+                profile.step(path, "INIT", first.getLeft(), first.getRight());
             }
 
             // AND the rest of the bitmaps
-            for (Pair<Roaring64NavigableMap, Long> pair : filters) {
-                nodeIds.and(pair.first());
+            for (Triple<String, Roaring64NavigableMap, Long> triple : filters) {
+                nodeIds.and(triple.getMiddle());
+                if (profile.isEnabled()) {
+                    profile.step(path, "AND", triple.getLeft(), nodeIds.getLongCardinality());
+                }
+            }
+
+            profile.time("bitmaps", System.nanoTime() - start);
+
+            // The deferred filters are checked on each candidate while that is cheaper than loading them
+            List<String> later = mustHave.stream().filter(item -> deferred.contains(item) && !covered.contains(item))
+                    .sorted(Comparator.comparing(item -> estimates.get(item).loadCost))
+                    .collect(Collectors.toList());
+            for (String item : later) {
+                Map<String, Object> filter = inverse.get(Integer.valueOf(item));
+                if (isProbing(nodeIds, estimates.get(item))) {
+                    start = System.nanoTime();
+                    nodeIds = Prober.probe(database, filter, nodeIds);
+                    long nanos = System.nanoTime() - start;
+                    profile.time("probes", nanos);
+                    profile.filter(path, item, filter, false, false, nodeIds, nanos);
+                    profile.step(path, "PROBE", item, nodeIds.getLongCardinality());
+                } else {
+                    load(database, label, filter, bitmaps);
+                    Pair<Roaring64NavigableMap, Long> filterValueIds = getFilterValueIds(database, label, filter, bitmaps, misses, shared, mask, window, path, item, false, profile);
+                    nodeIds.and(filterValueIds.getLeft());
+                    if (profile.isEnabled()) {
+                        profile.step(path, "AND", item, nodeIds.getLongCardinality());
+                    }
+                }
             }
 
             // now lets remove the must nots
             for (String item : mustNot) {
-                Map<String, Object> filter = inverse.get(Integer.valueOf(item));
-                MutableTriple<Label, String, Object> key = MutableTriple.of(label, (String)filter.get("property"), null);
-
-                // Since the values can be inside an array, we are treating these as belonging to any in the array
-                ArrayList<Object> filterValues = (ArrayList<Object>) filter.get("values");
-                Roaring64NavigableMap filterValueIds = new Roaring64NavigableMap();
-                for (Object value : filterValues) {
-                    key.setRight(value);
-                    // Join them together
-                    Roaring64NavigableMap dimensionValueIds = valueCache.get(key);
-                    if (dimensionValueIds != null) {
-                        filterValueIds.or(dimensionValueIds);
+                if (deferred.contains(item) && isProbing(nodeIds, estimates.get(item))) {
+                    start = System.nanoTime();
+                    Roaring64NavigableMap probed = Prober.probe(database, inverse.get(Integer.valueOf(item)), nodeIds);
+                    nodeIds.andNot(probed);
+                    long nanos = System.nanoTime() - start;
+                    profile.time("probes", nanos);
+                    profile.filter(path, item, inverse.get(Integer.valueOf(item)), true, false, probed, nanos);
+                    if (profile.isEnabled()) {
+                        profile.step(path, "PROBENOT", item, nodeIds.getLongCardinality());
                     }
+                    continue;
+                }
+                if (deferred.contains(item)) {
+                    load(database, label, inverse.get(Integer.valueOf(item)), bitmaps);
                 }
+                Pair<Roaring64NavigableMap, Long> filterValueIds = getFilterValueIds(database, label, inverse.get(Integer.valueOf(item)), bitmaps, misses, shared, mask, window, path, item, true, profile);
+
+                start = System.nanoTime();
                 // AND NOT any excluded node ids
-                nodeIds.andNot(filterValueIds);
+                nodeIds.andNot(filterValueIds.getLeft());
+                profile.time("bitmaps", System.nanoTime() - start);
+                if (profile.isEnabled()) {
+                    profile.step(path, "ANDNOT", item, nodeIds.getLongCardinality());
+                }
             }
 
+            start = System.nanoTime();
             // add the node ids found via these set of filters
             combinedNodeIds.or(nodeIds);
+            profile.time("bitmaps", System.nanoTime() - start);
+            if (profile.isEnabled()) {
+                profile.step(path, "OR", path, combinedNodeIds.getLongCardinality());
+            }
         }
 
-        // Return nodes AND the total count of nodes found.
-        size = combinedNodeIds.getLongCardinality();
+        Metrics.record(Metrics.FILTER_EVALUATION, System.nanoTime() - evaluation);
+        return combinedNodeIds;
+    }
 
-        results = StreamSupport.stream(Spliterators.spliteratorUnknownSize(
-                combinedNodeIds.iterator(), Spliterator.CONCURRENT), false)
-                .map(transaction::getNodeById)
-                .skip(offset).limit(limit)
-                .collect(Collectors.toList());
+    // Evaluates every path over dense bitsets spanning the ids of their must haves, converting back only at the end.
+    // Returns null, having only built filters the regular evaluation reuses, when some path isn't dense enough.
+    private static Roaring64NavigableMap denseFilter(DatabaseCaches database, Label label, List<String> paths, BiMap<Integer, HashMap<String, Object>> inverse,
+                                                     Map<Object, Roaring64NavigableMap> bitmaps, Set<Object> misses,
+                                                     Map<Map<String, Object>, Pair<Roaring64NavigableMap, Long>> shared,
+                                                     QueryProfile profile) {
+        Map<String, List<Pair<Roaring64NavigableMap, Long>>> mustHaves = new HashMap<>();
+        long start = Long.MAX_VALUE;
+        long end = Long.MIN_VALUE;
+        for (String path : paths) {
+            List<Pair<Roaring64NavigableMap, Long>> mustHave = new ArrayList<>();
+            // Only profiled once we know the query is dense, the regular evaluation profiles them otherwise
+            for (String item : splitPath(path).getLeft()) {
+                mustHave.add(getFilterValueIds(database, label, inverse.get(Integer.valueOf(item)), bitmaps, misses, shared, null, null, path, item, false, QueryProfile.NONE));
+            }
+            // A path without must haves adds nothing
+            if (mustHave.isEmpty()) {
+                continue;
+            }
+            mustHave.sort(Comparator.comparing(Pair::getRight));
+            Pair<Roaring64NavigableMap, Long> smallest = mustHave.get(0);
+            if (smallest.getRight() == 0) {
+                return null;
+            }
+            // Its ids can only be inside those of its smallest must have
+            long first = smallest.getLeft().select(0);
+            long last = smallest.getLeft().select(smallest.getRight() - 1);
+            start = Math.min(start, first);
+            end = Math.max(end, last + 1);
+            mustHaves.put(path, mustHave);
+        }
+        long low = start;
+        long high = end;
+        if (mustHaves.isEmpty() || !DenseBitset.fits(low, high)
+                || mustHaves.values().stream().anyMatch(mustHave -> mustHave.get(0).getRight() < (high - low) * DenseBitset.DENSITY)) {
+            return null;
+        }
 
-        return Stream.of(new SizeAndNodeResult(results, size));
+        long begin = System.nanoTime();
+        // A filter used by several paths is converted once
+        Map<Roaring64NavigableMap, DenseBitset> converted = new IdentityHashMap<>();
+        DenseBitset combined = null;
+        for (String path : paths) {
+            List<Pair<Roaring64NavigableMap, Long>> mustHave = mustHaves.get(path);
+            if (mustHave == null) {
+                continue;
+            }
+            // Dense queries count towards hot intersections like any other
+            database.intersections.record(label, splitPath(path).getLeft(), inverse, shared);
+            if (profile.isEnabled()) {
+                for (String item : splitPath(path).getLeft()) {
+                    getFilterValueIds(database, label, inverse.get(Integer.valueOf(item)), bitmaps, misses, shared, null, null, path, item, false, profile);
+                }
+            }
+            DenseBitset nodeIds = converted.computeIfAbsent(mustHave.get(0).getLeft(), bitmap -> DenseBitset.of(bitmap, low, high)).copy();
+            profile.step(path, "INIT", path, mustHave.get(0).getRight());
+            for (Pair<Roaring64NavigableMap, Long> filterValueIds : mustHave.subList(1, mustHave.size())) {
+                nodeIds.and(converted.computeIfAbsent(filterValueIds.getLeft(), bitmap -> DenseBitset.of(bitmap, low, high)));
+                if (profile.isEnabled()) {
+                    profile.step(path, "AND", path, nodeIds.cardinality());
+                }
+            }
+            for (String item : splitPath(path).getRight()) {
+                Pair<Roaring64NavigableMap, Long> filterValueIds = getFilterValueIds(database, label, inverse.get(Integer.valueOf(item)), bitmaps, misses, shared, null, null, path, item, true, profile);
+                nodeIds.andNot(converted.computeIfAbsent(filterValueIds.getLeft(), bitmap -> DenseBitset.of(bitmap, low, high)));
+                if (profile.isEnabled()) {
+                    profile.step(path, "ANDNOT", item, nodeIds.cardinality());
+                }
+            }
+            if (combined == null) {
+                combined = nodeIds;
+            } else {
+                combined.or(nodeIds);
+            }
+            if (profile.isEnabled()) {
+                profile.step(path, "OR", path, combined.cardinality());
+            }
+        }
+        Roaring64NavigableMap combinedNodeIds = combined.toBitmap();
+        profile.time("dense", System.nanoTime() - begin);
+        return combinedNodeIds;
+    }
+
+    private static Pair<Roaring64NavigableMap, Long> getFilterValueIds(DatabaseCaches database, Label label, Map<String, Object> filter,
+                                                                       Map<Object, Roaring64NavigableMap> bitmaps,
+                                                                       Set<Object> misses,
+                                                                       Map<Map<String, Object>, Pair<Roaring64NavigableMap, Long>> shared,
+                                                                       Roaring64NavigableMap mask, List<Long> window,
+                                                                       String path, String item, boolean mustNot, QueryProfile profile) {
+        long start = System.nanoTime();
+        boolean cached = true;
+
+        // Since the values can be inside an array, we are treating these as belonging to any in the array
+        ArrayList<Object> values = (ArrayList<Object>) filter.getOrDefault("values", new ArrayList<>());
+        for (Object value : values) {
+            if (misses.contains(getFilterKey(label, filter, value))) {
+                cached = false;
+            }
+        }
+
+        // The same filter with or without a not has the same node ids
+        Map<String, Object> filterKey = new HashMap<>(filter);
+        filterKey.remove("not");
+        // Inside a window it only holds part of its node ids
+        if (window != null) {
+            filterKey.put("window", window);
+        }
+        // A threshold evaluates its own filters first, since they go into the same shared map.
+        // Inside a mask its filters only hold part of their node ids, so they get a map of their own.
+        if (filter.containsKey("atLeast") && !shared.containsKey(filterKey)) {
+            Map<Map<String, Object>, Pair<Roaring64NavigableMap, Long>> thresholdShared = mask == null ? shared : new ConcurrentHashMap<>();
+            Roaring64NavigableMap nodeIds = getThresholdIds(filter, query -> filter(database, label, query, QueryProfile.NONE, thresholdShared, mask));
+            shared.putIfAbsent(filterKey, Pair.of(nodeIds, nodeIds.getLongCardinality()));
+        }
+        Pair<Roaring64NavigableMap, Long> filterValueIds = shared.computeIfAbsent(filterKey, k -> {
+            Roaring64NavigableMap nodeIds = new Roaring64NavigableMap();
+            // A segment is used as it is, and only counts for the label we are filtering
+            if (filter.containsKey("segment")) {
+                Segments.Segment segment = database.segments.get((String) filter.get("segment"));
+                nodeIds.or(masked(segment.nodeIds(), mask));
+                if (!segment.label.name().equals(label.name())) {
+                    nodeIds.and(database.labelCache.get(label));
+                }
+            }
+            // The nodes with the property, or without it when exists is false
+            if (filter.containsKey("exists")) {
+                Roaring64NavigableMap present = database.presenceCache.get(Pair.of(label, (String) filter.get("property")));
+                if ((boolean) filter.get("exists")) {
+                    nodeIds.or(masked(present, mask));
+                } else {
+                    nodeIds.or(masked(database.labelCache.get(label), mask));
+                    nodeIds.andNot(present);
+                }
+            }
+            for (Object value : values) {
+                Roaring64NavigableMap dimensionValueIds = bitmaps.get(getFilterKey(label, filter, value));
+                // Join them together
+                if (dimensionValueIds != null) {
+                    nodeIds.or(masked(dimensionValueIds, mask));
+                }
+            }
+
+            // Nodes of another label only count when they also have the label we are filtering
+            if (filter.containsKey("label") && !filter.containsKey("relationship") && !label.name().equals(filter.get("label"))) {
+                nodeIds.and(database.labelCache.get(label));
+            }
+            // The cardinality is taken once here, the bitmap is only read from now on
+            return Pair.of(nodeIds, nodeIds.getLongCardinality());
+        });
+
+        long nanos = System.nanoTime() - start;
+        profile.time("filters", nanos);
+        profile.filter(path, item, filter, mustNot, cached, filterValueIds.getLeft(), nanos);
+        return filterValueIds;
+    }
+
+    // The nodes matching at least "atLeast" of the queries in "of", each counting its weight when "weights" are given
+    private static Roaring64NavigableMap getThresholdIds(Map<String, Object> filter, Function<Map<String, Object>, Roaring64NavigableMap> evaluate) {
+        List<HashMap<String, Object>> of = (List<HashMap<String, Object>>) filter.get("of");
+        List<Long> weights = filter.containsKey("weights")
+                ? ((List<Number>) filter.get("weights")).stream().map(Number::longValue).collect(Collectors.toList())
+                : null;
+        long atLeast = ((Number) filter.get("atLeast")).longValue();
+        if (atLeast < 1 || (weights != null && (weights.size() != of.size() || weights.stream().anyMatch(weight -> weight < 1)))) {
+            throw new IllegalArgumentException("A threshold needs atLeast of 1 or more and a weight of 1 or more for each filter");
+        }
+
+        List<Roaring64NavigableMap> inputs = new ArrayList<>();
+        for (HashMap<String, Object> entry : of) {
+            // Each one is evaluated as a query of its own, so it can be a filter or a group of them
+            HashMap<String, Object> query = new HashMap<>();
+            query.put("not", false);
+            query.put("and", new ArrayList<>(List.of(entry)));
+            inputs.add(evaluate.apply(query));
+        }
+        return Threshold.atLeast(inputs, weights, atLeast);
+    }
+
+    // Minimizes the formula of the query into the paths whose union is the result
+    private static List<String> getPaths(Map<String, Object> query, MutableBiMap<HashMap<String, Object>, Integer> expressions, QueryProfile profile) {
+        long start = System.nanoTime();
+        String formula = getFormula(query, "", expressions);
+
+        // Use the expression to find the required paths
+        BooleanExpression boEx = new BooleanExpression(formula);
+        boEx.doTabulationMethod();
+        boEx.doQuineMcCluskey();
+        boEx.doPetricksMethod();
+        List<String> paths = boEx.getPathExpressions();
+
+        long planning = System.nanoTime() - start;
+        profile.plan(formula, paths);
+        profile.time("planning", planning);
+        Metrics.record(Metrics.FILTER_PLANNING, planning);
+        return paths;
+    }
+
+    // Using the ANDs and NOTs, figure out what a path must have and must not
+    private static Pair<Set<String>, Set<String>> splitPath(String path) {
+        String[] ids = path.split("[!&]");
+        char[] rels = path.replaceAll("[^&^!]", "").toCharArray();
+
+        Set<String> mustHave = new HashSet<>();
+        Set<String> mustNot = new HashSet<>();
+        if (path.startsWith("!")) {
+            mustNot.add(ids[0]);
+        } else {
+            mustHave.add(ids[0]);
+        }
+
+        for (int i = 0; i < rels.length; i++) {
+            if (rels[i] == '&') {
+                mustHave.add(ids[1 + i]);
+            } else {
+                mustNot.add(ids[1 + i]);
+            }
+        }
+        return Pair.of(mustHave, mustNot);
+    }
+
+    // Fetches the bitmaps of every value used by any path up front, so the misses load in parallel.
+    // When profiling, the keys that weren't cached are added to the misses.
+    private static Map<Object, Roaring64NavigableMap> getBitmaps(DatabaseCaches database, Label label, List<String> paths, BiMap<Integer, HashMap<String, Object>> inverse,
+                                                                 Set<String> deferred, Set<Object> misses, QueryProfile profile) {
+        Set<Triple<Label, String, Object>> keys = new HashSet<>();
+        Set<HopKey> hops = new HashSet<>();
+        for (String path : paths) {
+            for (String item : path.split("[!&]")) {
+                Map<String, Object> filter = inverse.get(Integer.valueOf(item));
+                // Segments are already materialized
+                if (filter.containsKey("segment") || filter.containsKey("atLeast") || filter.containsKey("exists") || deferred.contains(item)) {
+                    continue;
+                }
+                for (Object value : (ArrayList<Object>) filter.get("values")) {
+                    Object key = getFilterKey(label, filter, value);
+                    if (key instanceof HopKey) {
+                        hops.add((HopKey) key);
+                    } else {
+                        keys.add((Triple<Label, String, Object>) key);
+                    }
+                }
+            }
+        }
+        // Read through the maps, so the check doesn't count as cache hits and misses on top of the loads
+        if (profile.isEnabled()) {
+            for (Triple<Label, String, Object> key : keys) {
+                if (!database.valueCache.asMap().containsKey(key)) {
+                    misses.add(key);
+                }
+            }
+            for (HopKey key : hops) {
+                if (!database.hopCache.asMap().containsKey(key)) {
+                    misses.add(key);
+                }
+            }
+        }
+        CompletableFuture<Map<HopKey, Roaring64NavigableMap>> projected = database.hopCache.getAll(hops);
+        Map<Object, Roaring64NavigableMap> bitmaps = new HashMap<>(database.valueCache.getAll(keys).join());
+        bitmaps.putAll(projected.join());
+        return bitmaps;
+    }
+
+    // The first node ids of the result in id order, up to the limit, without building the result.
+    // Each path streams the ids of its smallest must have filter that are in every other must have
+    // and in none of its must nots, and the paths are merged in id order.
+    static List<Long> lazyFilter(DatabaseCaches database, Label label, Map<String, Object> query, long limit) {
+        MutableBiMap<HashMap<String, Object>, Integer> expressions = new HashBiMap<>();
+        List<String> paths = getPaths(query, expressions, QueryProfile.NONE);
+        BiMap<Integer, HashMap<String, Object>> inverse = expressions.inverse();
+        long evaluation = System.nanoTime();
+
+        Set<Object> misses = Collections.emptySet();
+        Map<Object, Roaring64NavigableMap> bitmaps = getBitmaps(database, label, paths, inverse, Collections.emptySet(), misses, QueryProfile.NONE);
+        Map<Map<String, Object>, Pair<Roaring64NavigableMap, Long>> shared = new HashMap<>();
+
+        // Ordered by the next id of each path
+        PriorityQueue<Pair<long[], PathIterator>> queue = new PriorityQueue<>(Comparator.comparingLong(entry -> entry.getLeft()[0]));
+        for (String path : paths) {
+            Pair<Set<String>, Set<String>> split = splitPath(path);
+            List<FilterIds> mustHave = new ArrayList<>();
+            for (String item : split.getLeft()) {
+                mustHave.add(getFilterIds(database, label, inverse.get(Integer.valueOf(item)), bitmaps, misses, shared, path, item, false));
+            }
+            if (mustHave.isEmpty()) {
+                continue;
+            }
+            List<FilterIds> mustNot = new ArrayList<>();
+            for (String item : split.getRight()) {
+                mustNot.add(getFilterIds(database, label, inverse.get(Integer.valueOf(item)), bitmaps, misses, shared, path, item, true));
+            }
+            mustHave.sort(Comparator.comparingLong(filterIds -> filterIds.cardinality));
+            PathIterator iterator = new PathIterator(mustHave, mustNot);
+            if (iterator.hasNext()) {
+                queue.add(Pair.of(new long[]{iterator.next()}, iterator));
+            }
+        }
+
+        List<Long> nodeIds = new ArrayList<>();
+        long last = -1;
+        while (!queue.isEmpty() && nodeIds.size() < limit) {
+            Pair<long[], PathIterator> entry = queue.poll();
+            long nodeId = entry.getLeft()[0];
+            // A node may be found by more than one path
+            if (nodeId != last) {
+                nodeIds.add(nodeId);
+                last = nodeId;
+            }
+            if (entry.getRight().hasNext()) {
+                entry.getLeft()[0] = entry.getRight().next();
+                queue.add(entry);
+            }
+        }
+        Metrics.record(Metrics.FILTER_EVALUATION, System.nanoTime() - evaluation);
+        return nodeIds;
+    }
+
+    // The node ids of a filter, kept as the bitmaps of its values instead of ORed together,
+    // since only a few ids are ever looked up or walked when streaming. Filters that aren't
+    // a plain union of value bitmaps are built as usual, into a single bitmap.
+    private static FilterIds getFilterIds(DatabaseCaches database, Label label, Map<String, Object> filter,
+                                          Map<Object, Roaring64NavigableMap> bitmaps, Set<Object> misses,
+                                          Map<Map<String, Object>, Pair<Roaring64NavigableMap, Long>> shared,
+                                          String path, String item, boolean mustNot) {
+        boolean otherLabel = filter.containsKey("label") && !filter.containsKey("relationship") && !label.name().equals(filter.get("label"));
+        if (filter.containsKey("segment") || filter.containsKey("atLeast") || filter.containsKey("exists") || otherLabel) {
+            return new FilterIds(new Roaring64NavigableMap[]{getFilterValueIds(database, label, filter, bitmaps, misses, shared,
+                    null, null, path, item, mustNot, QueryProfile.NONE).getLeft()});
+        }
+        List<Roaring64NavigableMap> parts = new ArrayList<>();
+        for (Object value : (List<Object>) filter.get("values")) {
+            Roaring64NavigableMap part = bitmaps.get(getFilterKey(label, filter, value));
+            if (part != null && !part.isEmpty()) {
+                parts.add(part);
+            }
+        }
+        return new FilterIds(parts.toArray(new Roaring64NavigableMap[0]));
+    }
+
+    private static class FilterIds {
+        final Roaring64NavigableMap[] parts;
+        // At most this many, values may share node ids
+        final long cardinality;
+
+        FilterIds(Roaring64NavigableMap[] parts) {
+            this.parts = parts;
+            long cardinality = 0;
+            for (Roaring64NavigableMap part : parts) {
+                cardinality += part.getLongCardinality();
+            }
+            this.cardinality = cardinality;
+        }
+
+        boolean contains(long nodeId) {
+            for (Roaring64NavigableMap part : parts) {
+                if (part.contains(nodeId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        IdIterator iterator() {
+            if (parts.length > 1) {
+                return new UnionIterator(parts);
+            }
+            LongIterator ids = parts[0].getLongIterator();
+            return new IdIterator() {
+                @Override
+                public boolean hasNext() {
+                    return ids.hasNext();
+                }
+
+                @Override
+                public long next() {
+                    return ids.next();
+                }
+            };
+        }
+    }
+
+    // Node ids in id order, walked once. Not a LongIterator, which must clone, and Roaring 0.9.0's own iterators can't.
+    private interface IdIterator {
+        boolean hasNext();
+
+        long next();
+    }
+
+    // The node ids of several bitmaps in id order, merged as they are walked
+    private static class UnionIterator implements IdIterator {
+        private final LongIterator[] iterators;
+        private final long[] heads;
+
+        UnionIterator(Roaring64NavigableMap[] parts) {
+            iterators = new LongIterator[parts.length];
+            heads = new long[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                iterators[i] = parts[i].getLongIterator();
+                heads[i] = iterators[i].hasNext() ? iterators[i].next() : -1;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            for (long head : heads) {
+                if (head >= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public long next() {
+            long next = Long.MAX_VALUE;
+            for (long head : heads) {
+                if (head >= 0 && head < next) {
+                    next = head;
+                }
+            }
+            // Every bitmap holding the id moves past it, so it comes out once
+            for (int i = 0; i < heads.length; i++) {
+                if (heads[i] == next) {
+                    heads[i] = iterators[i].hasNext() ? iterators[i].next() : -1;
+                }
+            }
+            return next;
+        }
+    }
+
+    // The node ids of one path in id order, found one at a time
+    private static class PathIterator {
+        private final IdIterator candidates;
+        private final FilterIds[] others;
+        private final FilterIds[] mustNot;
+        private long next = -1;
+
+        PathIterator(List<FilterIds> mustHave, List<FilterIds> mustNot) {
+            this.candidates = mustHave.get(0).iterator();
+            this.others = mustHave.subList(1, mustHave.size()).toArray(new FilterIds[0]);
+            this.mustNot = mustNot.toArray(new FilterIds[0]);
+            advance();
+        }
+
+        boolean hasNext() {
+            return next >= 0;
+        }
+
+        long next() {
+            long current = next;
+            advance();
+            return current;
+        }
+
+        private void advance() {
+            next = -1;
+            while (candidates.hasNext()) {
+                long candidate = candidates.next();
+                if (matches(candidate)) {
+                    next = candidate;
+                    return;
+                }
+            }
+        }
+
+        private boolean matches(long candidate) {
+            for (FilterIds filterIds : others) {
+                if (!filterIds.contains(candidate)) {
+                    return false;
+                }
+            }
+            for (FilterIds filterIds : mustNot) {
+                if (filterIds.contains(candidate)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // The candidates matching the query, read from the graph as it is now instead of from the cached bitmaps,
+    // so a standing query sees a change as soon as it commits. Segments are the exception, they only know what their bitmaps do.
+    // Relationship hops are not checked, standing queries can't have them.
+    static Roaring64NavigableMap recheck(DatabaseCaches database, Label label, Map<String, Object> query, Roaring64NavigableMap candidates) {
+        MutableBiMap<HashMap<String, Object>, Integer> expressions = new HashBiMap<>();
+        List<String> paths = getPaths(query, expressions, QueryProfile.NONE);
+        BiMap<Integer, HashMap<String, Object>> inverse = expressions.inverse();
+        Roaring64NavigableMap labeled = Prober.having(database, label, null, candidates);
+
+        Map<String, Roaring64NavigableMap> matches = new HashMap<>();
+        Roaring64NavigableMap combinedNodeIds = new Roaring64NavigableMap();
+        for (String path : paths) {
+            Pair<Set<String>, Set<String>> splitPath = splitPath(path);
+            // A path without must haves adds nothing
+            if (splitPath.getLeft().isEmpty()) {
+                continue;
+            }
+            Roaring64NavigableMap nodeIds = new Roaring64NavigableMap();
+            nodeIds.or(labeled);
+            for (String item : splitPath.getLeft()) {
+                nodeIds.and(matches.computeIfAbsent(item, k -> recheckFilter(database, label, inverse.get(Integer.valueOf(k)), labeled)));
+            }
+            for (String item : splitPath.getRight()) {
+                nodeIds.andNot(matches.computeIfAbsent(item, k -> recheckFilter(database, label, inverse.get(Integer.valueOf(k)), labeled)));
+            }
+            combinedNodeIds.or(nodeIds);
+        }
+        return combinedNodeIds;
+    }
+
+    private static Roaring64NavigableMap recheckFilter(DatabaseCaches database, Label label, Map<String, Object> filter, Roaring64NavigableMap candidates) {
+        if (filter.containsKey("atLeast")) {
+            return getThresholdIds(filter, query -> recheck(database, label, query, candidates));
+        }
+        if (filter.containsKey("segment")) {
+            Roaring64NavigableMap nodeIds = new Roaring64NavigableMap();
+            nodeIds.or(database.segments.get((String) filter.get("segment")).nodeIds());
+            nodeIds.and(candidates);
+            return nodeIds;
+        }
+        if (filter.containsKey("exists")) {
+            Roaring64NavigableMap present = Prober.having(database, null, (String) filter.get("property"), candidates);
+            if ((boolean) filter.get("exists")) {
+                return present;
+            }
+            Roaring64NavigableMap absent = new Roaring64NavigableMap();
+            absent.or(candidates);
+            absent.andNot(present);
+            return absent;
+        }
+        // Nodes of another label only count when they also have that label
+        Roaring64NavigableMap nodeIds = filter.containsKey("label")
+                ? Prober.having(database, Label.label((String) filter.get("label")), null, candidates)
+                : candidates;
+        return Prober.probe(database, filter, nodeIds);
+    }
+
+    // Estimates are only needed when some filter isn't cached yet and a path has more than one filter
+    private static Map<String, Prober.Estimate> getEstimates(DatabaseCaches database, Label label, List<String> paths, BiMap<Integer, HashMap<String, Object>> inverse) {
+        Map<String, Map<String, Object>> filters = new HashMap<>();
+        boolean uncached = false;
+        boolean combined = false;
+        for (String path : paths) {
+            String[] items = path.split("[!&]");
+            combined |= items.length > 1;
+            for (String item : items) {
+                Map<String, Object> filter = inverse.get(Integer.valueOf(item));
+                filters.put(item, filter);
+                uncached |= !Prober.isCached(database, label, filter);
+            }
+        }
+        if (!uncached || !combined) {
+            return Collections.emptyMap();
+        }
+        Map<String, Prober.Estimate> estimates = Prober.estimate(database, label, filters);
+        return estimates == null ? Collections.emptyMap() : estimates;
+    }
+
+    // Each path starts from its cheapest filter to load. Any other plain property filter whose load
+    // costs more than probing the matches of that filter is deferred, unless another path needs it loaded.
+    private static Set<String> getDeferred(List<String> paths, Map<String, Prober.Estimate> estimates) {
+        if (estimates.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<String> deferred = new HashSet<>();
+        Set<String> loaded = new HashSet<>();
+        for (String path : paths) {
+            String[] items = path.split("[!&]");
+            Set<String> mustHave = splitPath(path).getLeft();
+            if (mustHave.isEmpty()) {
+                loaded.addAll(Arrays.asList(items));
+                continue;
+            }
+            String driver = mustHave.stream()
+                    .min(Comparator.comparing((String item) -> estimates.get(item).loadCost)
+                            .thenComparing(item -> estimates.get(item).matches))
+                    .get();
+            long probeCost = estimates.get(driver).matches * Prober.PROBE_COST;
+            for (String item : items) {
+                Prober.Estimate estimate = estimates.get(item);
+                if (!item.equals(driver) && estimate.loadCost > probeCost && estimate.loadCost > 0) {
+                    deferred.add(item);
+                } else {
+                    loaded.add(item);
+                }
+            }
+        }
+        deferred.removeAll(loaded);
+        return deferred;
+    }
+
+    private static boolean isProbing(Roaring64NavigableMap candidates, Prober.Estimate estimate) {
+        return candidates.getLongCardinality() * Prober.PROBE_COST < estimate.loadCost;
+    }
+
+    // Loads the bitmaps of a deferred filter after all
+    private static void load(DatabaseCaches database, Label label, Map<String, Object> filter, Map<Object, Roaring64NavigableMap> bitmaps) {
+        Set<Triple<Label, String, Object>> keys = new HashSet<>();
+        for (Object value : (List<Object>) filter.get("values")) {
+            keys.add(Triple.of(label, (String) filter.get("property"), value));
+        }
+        bitmaps.putAll(database.valueCache.getAll(keys).join());
+    }
+
+    // The lowest and highest node id of the months overlapped by the date ranges of partitioned properties
+    // that every node of the path must match, or null when there are none
+    private static List<Long> getPartitionWindow(DatabaseCaches database, Label label, String path, BiMap<Integer, HashMap<String, Object>> inverse) {
+        Set<String> mustHave = splitPath(path).getLeft();
+
+        long min = Long.MIN_VALUE;
+        long max = Long.MAX_VALUE;
+        boolean bounded = false;
+        for (String item : mustHave) {
+            Map<String, Object> filter = inverse.get(Integer.valueOf(item));
+            if (filter.containsKey("label") || filter.containsKey("relationship") || filter.containsKey("segment") || filter.containsKey("atLeast")
+                    || filter.containsKey("exists")) {
+                continue;
+            }
+            TimePartitions partitions = database.partitionCache.getIfPresent(Pair.of(label, (String) filter.get("property")));
+            if (partitions == null) {
+                continue;
+            }
+            long filterMin = Long.MAX_VALUE;
+            long filterMax = -1;
+            boolean ranges = true;
+            for (Object value : (ArrayList<Object>) filter.get("values")) {
+                try {
+                    IndexQuery predicate = getPredicate(0, value);
+                    if (!TimePartitions.accepts(predicate)) {
+                        ranges = false;
+                        break;
+                    }
+                    long[] idRange = partitions.idRange(predicate);
+                    if (idRange != null) {
+                        filterMin = Math.min(filterMin, idRange[0]);
+                        filterMax = Math.max(filterMax, idRange[1]);
+                    }
+                } catch (ParseException exception) {
+                    ranges = false;
+                    break;
+                }
+            }
+            if (ranges) {
+                min = Math.max(min, filterMin);
+                max = Math.min(max, filterMax);
+                bounded = true;
+            }
+        }
+        if (!bounded) {
+            return null;
+        }
+        // Nothing can match, an empty window
+        return min > max ? List.of(0L, -1L) : List.of(min, max);
+    }
+
+    // Only the containers inside the mask are copied, so masking is cheap
+    private static Roaring64NavigableMap masked(Roaring64NavigableMap nodeIds, Roaring64NavigableMap mask) {
+        if (mask == null) {
+            return nodeIds;
+        }
+        Roaring64NavigableMap masked = new Roaring64NavigableMap();
+        masked.or(mask);
+        masked.and(nodeIds);
+        return masked;
     }
 
-    String getFormula(Map<String, Object> query, String formula, MutableBiMap<HashMap<String, Object>, Integer> expressions) {
+    static String getFormula(Map<String, Object> query, String formula, MutableBiMap<HashMap<String, Object>, Integer> expressions) {
         if((boolean)query.getOrDefault("not", false)) {
             formula = formula + "!";
         }
@@ -0,0 +1,159 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.internal.kernel.api.*;
+import org.neo4j.internal.schema.IndexDescriptor;
+import org.neo4j.internal.schema.IndexOrder;
+import org.neo4j.io.pagecache.tracing.cursor.PageCursorTracer;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.impl.coreapi.InternalTransaction;
+import org.neo4j.values.storable.*;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ObjLongConsumer;
+
+// Reads every value of a property of a label in a single pass and groups the node ids by value.
+// An online index is scanned when it can give us the values, otherwise the label is scanned
+// and the property is read from each node with a reused property cursor.
+public class PropertyScanner {
+
+    public static Map<Object, Roaring64NavigableMap> scan(DatabaseCaches database, Label label, String property) throws Exception {
+        try (Transaction tx = database.graph.beginTx()) {
+            KernelTransaction ktx = ((InternalTransaction) tx).kernelTransaction();
+            TokenRead tokenRead = ktx.tokenRead();
+            int labelId = tokenRead.nodeLabel(label.name());
+            int propertyKeyId = tokenRead.propertyKey(property);
+            if (labelId == TokenRead.NO_TOKEN || propertyKeyId == TokenRead.NO_TOKEN) {
+                return new HashMap<>();
+            }
+
+            IndexDescriptor index = Procedures.getOnlineIndex(ktx, labelId, propertyKeyId);
+            if (index != null) {
+                Map<Object, Roaring64NavigableMap> values = scanIndex(ktx, index);
+                if (values != null) {
+                    return values;
+                }
+            }
+            return scanLabel(ktx, labelId, propertyKeyId);
+        }
+    }
+
+    // The ids of every node of the label, from the label scan store
+    public static Roaring64NavigableMap nodes(DatabaseCaches database, Label label) {
+        Roaring64NavigableMap nodeIds = new Roaring64NavigableMap();
+        try (Transaction tx = database.graph.beginTx()) {
+            KernelTransaction ktx = ((InternalTransaction) tx).kernelTransaction();
+            int labelId = ktx.tokenRead().nodeLabel(label.name());
+            if (labelId == TokenRead.NO_TOKEN) {
+                return nodeIds;
+            }
+            IdBuffer ids = new IdBuffer(nodeIds);
+            try (NodeLabelIndexCursor nodes = ktx.cursors().allocateNodeLabelIndexCursor(PageCursorTracer.NULL)) {
+                ktx.dataRead().nodeLabelScan(labelId, nodes, IndexOrder.NONE);
+                while (nodes.next()) {
+                    ids.add(nodes.nodeReference());
+                }
+            }
+            ids.flush();
+        }
+        return nodeIds;
+    }
+
+    // The ids of every node of the label that has the property, from its index when it is online,
+    // since every node with the label and property has an entry in it, otherwise from a label scan
+    public static Roaring64NavigableMap present(DatabaseCaches database, Label label, String property) {
+        Roaring64NavigableMap nodeIds = new Roaring64NavigableMap();
+        try (Transaction tx = database.graph.beginTx()) {
+            KernelTransaction ktx = ((InternalTransaction) tx).kernelTransaction();
+            TokenRead tokenRead = ktx.tokenRead();
+            int labelId = tokenRead.nodeLabel(label.name());
+            int propertyKeyId = tokenRead.propertyKey(property);
+            if (labelId == TokenRead.NO_TOKEN || propertyKeyId == TokenRead.NO_TOKEN) {
+                return nodeIds;
+            }
+            IdBuffer ids = new IdBuffer(nodeIds);
+            IndexDescriptor index = Procedures.getOnlineIndex(ktx, labelId, propertyKeyId);
+            if (index != null) {
+                Read read = ktx.dataRead();
+                try (NodeValueIndexCursor cursor = ktx.cursors().allocateNodeValueIndexCursor(PageCursorTracer.NULL)) {
+                    read.nodeIndexScan(read.indexReadSession(index), cursor, IndexQueryConstraints.unconstrained());
+                    while (cursor.next()) {
+                        ids.add(cursor.nodeReference());
+                    }
+                }
+            } else {
+                forEachValue(ktx, labelId, propertyKeyId, (value, nodeId) -> ids.add(nodeId));
+            }
+            ids.flush();
+        } catch (Exception exception) {
+            throw new RuntimeException(exception);
+        }
+        return nodeIds;
+    }
+
+    // Returns null when the index can't give us the values
+    static Map<Object, Roaring64NavigableMap> scanIndex(KernelTransaction ktx, IndexDescriptor index) throws Exception {
+        Map<Object, Roaring64NavigableMap> values = new HashMap<>();
+        Read read = ktx.dataRead();
+        try (NodeValueIndexCursor cursor = ktx.cursors().allocateNodeValueIndexCursor(PageCursorTracer.NULL)) {
+            read.nodeIndexScan(read.indexReadSession(index), cursor, IndexQueryConstraints.unorderedValues());
+            while (cursor.next()) {
+                if (!cursor.hasValue()) {
+                    return null;
+                }
+                add(values, cursor.propertyValue(0), cursor.nodeReference());
+            }
+        }
+        return values;
+    }
+
+    static Map<Object, Roaring64NavigableMap> scanLabel(KernelTransaction ktx, int labelId, int propertyKeyId) {
+        Map<Object, Roaring64NavigableMap> values = new HashMap<>();
+        forEachValue(ktx, labelId, propertyKeyId, (value, nodeId) -> add(values, value, nodeId));
+        return values;
+    }
+
+    // Calls the consumer with the value and node id of every node of the label that has the property
+    static void forEachValue(KernelTransaction ktx, int labelId, int propertyKeyId, ObjLongConsumer<Value> consumer) {
+        Read read = ktx.dataRead();
+        CursorFactory cursors = ktx.cursors();
+        try (NodeLabelIndexCursor nodes = cursors.allocateNodeLabelIndexCursor(PageCursorTracer.NULL);
+             NodeCursor node = cursors.allocateNodeCursor(PageCursorTracer.NULL);
+             PropertyCursor properties = cursors.allocatePropertyCursor(PageCursorTracer.NULL, ktx.memoryTracker())) {
+            read.nodeLabelScan(labelId, nodes, IndexOrder.NONE);
+            while (nodes.next()) {
+                read.singleNode(nodes.nodeReference(), node);
+                if (node.next()) {
+                    node.properties(properties);
+                    if (properties.seekProperty(propertyKeyId)) {
+                        consumer.accept(properties.propertyValue(), node.nodeReference());
+                    }
+                }
+            }
+        }
+    }
+
+    private static void add(Map<Object, Roaring64NavigableMap> values, Value value, long nodeId) {
+        Object key = asKeyValue(value);
+        if (key != null) {
+            values.computeIfAbsent(key, k -> new Roaring64NavigableMap()).addLong(nodeId);
+        }
+    }
+
+    // Turns a stored value into the object Cypher hands us as a query value, so warmed keys match query keys
+    static Object asKeyValue(Value value) {
+        if (value == null || value == Values.NO_VALUE || value instanceof ArrayValue) {
+            return null;
+        }
+        if (value instanceof IntegralValue) {
+            return ((IntegralValue) value).longValue();
+        }
+        if (value instanceof FloatingPointValue) {
+            return ((FloatingPointValue) value).doubleValue();
+        }
+        return value.asObjectCopy();
+    }
+}
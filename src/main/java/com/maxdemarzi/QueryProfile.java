@@ -0,0 +1,78 @@
+package com.maxdemarzi;
+
+import com.maxdemarzi.results.ProfileResult;
+import org.neo4j.graphdb.Node;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.util.*;
+
+// Collects the plan, stage timings and cardinalities of a single BooleanFilter evaluation.
+// The NONE instance is used when nobody asked for a profile and records nothing.
+public class QueryProfile {
+    public static final QueryProfile NONE = new QueryProfile(false);
+
+    private final boolean enabled;
+    private String formula;
+    private List<String> paths = Collections.emptyList();
+    private final Map<String, Object> timings = new LinkedHashMap<>();
+    private final List<Map<String, Object>> filters = new ArrayList<>();
+    private final List<Map<String, Object>> steps = new ArrayList<>();
+
+    public QueryProfile() {
+        this(true);
+    }
+
+    private QueryProfile(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void plan(String formula, List<String> paths) {
+        if (enabled) {
+            this.formula = formula;
+            this.paths = new ArrayList<>(paths);
+        }
+    }
+
+    // Timings are accumulated, so a stage visited once per path adds up across all paths
+    public void time(String stage, long nanos) {
+        if (enabled) {
+            timings.merge(stage, nanos, (a, b) -> (Long) a + (Long) b);
+        }
+    }
+
+    public void filter(String path, String id, Map<String, Object> filter, boolean mustNot, boolean cached,
+                       Roaring64NavigableMap bitmap, long nanos) {
+        if (enabled) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("path", path);
+            entry.put("id", id);
+            entry.put("property", filter.get("property"));
+            entry.put("values", filter.get("values"));
+            entry.put("mustNot", mustNot);
+            entry.put("cached", cached);
+            entry.put("cardinality", bitmap.getLongCardinality());
+            entry.put("bytes", bitmap.getLongSizeInBytes());
+            entry.put("nanos", nanos);
+            filters.add(entry);
+        }
+    }
+
+    public void step(String path, String operation, String id, long cardinality) {
+        if (enabled) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("path", path);
+            entry.put("operation", operation);
+            entry.put("id", id);
+            entry.put("cardinality", cardinality);
+            steps.add(entry);
+        }
+    }
+
+    public ProfileResult toResult(List<Node> nodes, long size) {
+        return new ProfileResult(formula, paths, timings, filters, steps, nodes, size);
+    }
+}
@@ -0,0 +1,77 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.internal.kernel.api.*;
+import org.neo4j.io.pagecache.tracing.cursor.PageCursorTracer;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.impl.coreapi.InternalTransaction;
+import org.neo4j.storageengine.api.RelationshipSelection;
+import org.roaringbitmap.longlong.LongIterator;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+// Projects a bitmap of neighbor node ids across a typed relationship into a bitmap of the nodes of a label.
+// The neighbors are split in batches that are expanded in parallel, each in its own transaction
+// with reused node and relationship cursors, instead of expanding one node at a time in Cypher.
+public class RelationshipProjection {
+    private static final int BATCH = 65_536;
+
+    public static Roaring64NavigableMap project(DatabaseCaches database, HopKey key, Roaring64NavigableMap neighbors) {
+        List<CompletableFuture<Roaring64NavigableMap>> batches = new ArrayList<>();
+        long[] batch = new long[BATCH];
+        int size = 0;
+        LongIterator iterator = neighbors.getLongIterator();
+        while (iterator.hasNext()) {
+            batch[size++] = iterator.next();
+            if (size == BATCH || !iterator.hasNext()) {
+                long[] ids = Arrays.copyOf(batch, size);
+                // The common pool, so a projection running on the loader pool never waits on itself
+                batches.add(CompletableFuture.supplyAsync(() -> expand(database, key, ids), ForkJoinPool.commonPool()));
+                size = 0;
+            }
+        }
+
+        Roaring64NavigableMap nodeIds = new Roaring64NavigableMap();
+        for (CompletableFuture<Roaring64NavigableMap> expanded : batches) {
+            nodeIds.or(expanded.join());
+        }
+        // Only the nodes of the label we are filtering count
+        nodeIds.and(database.labelCache.get(key.label));
+        return nodeIds;
+    }
+
+    private static Roaring64NavigableMap expand(DatabaseCaches database, HopKey key, long[] neighborIds) {
+        Roaring64NavigableMap nodeIds = new Roaring64NavigableMap();
+        IdBuffer ids = new IdBuffer(nodeIds);
+        try (Transaction tx = database.graph.beginTx()) {
+            KernelTransaction ktx = ((InternalTransaction) tx).kernelTransaction();
+            int typeId = ktx.tokenRead().relationshipType(key.relationship);
+            if (typeId == TokenRead.NO_TOKEN) {
+                return nodeIds;
+            }
+            // The hop is described from the node we filter, so we walk it back from the neighbor
+            RelationshipSelection selection = RelationshipSelection.selection(typeId, key.direction.reverse());
+            Read read = ktx.dataRead();
+            CursorFactory cursors = ktx.cursors();
+            try (NodeCursor node = cursors.allocateNodeCursor(PageCursorTracer.NULL);
+                 RelationshipTraversalCursor relationships = cursors.allocateRelationshipTraversalCursor(PageCursorTracer.NULL)) {
+                for (long neighborId : neighborIds) {
+                    read.singleNode(neighborId, node);
+                    if (node.next()) {
+                        node.relationships(relationships, selection);
+                        while (relationships.next()) {
+                            ids.add(relationships.otherNodeReference());
+                        }
+                    }
+                }
+            }
+        }
+        ids.flush();
+        return nodeIds;
+    }
+}
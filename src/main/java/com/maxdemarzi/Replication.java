@@ -0,0 +1,213 @@
+package com.maxdemarzi;
+
+import org.apache.commons.lang3.tuple.Triple;
+import org.neo4j.graphdb.Label;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.storageengine.api.TransactionIdStore;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.io.*;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Shares the value bitmaps one instance loads with the other instances of a cluster, so a miss is only paid once
+// and a replica that was never queried is warm after a failover. A bitmap is published with the id of the last
+// transaction closed before it was loaded, and only when no transaction closed while it was loading.
+// A peer applies it once it has closed that same transaction, since the bitmap is what it would load itself,
+// keeps it until then when it is behind, and drops it when it is ahead, since the bitmap may be stale.
+// Changes invalidate cached bitmaps, and the reloaded ones are published again at the newer transaction id.
+// Off unless -Dcom.maxdemarzi.boolean.replication names a shared directory or
+// -Dcom.maxdemarzi.boolean.replication.transport names a ReplicationTransport class.
+public class Replication {
+    private static final String INSTANCE = UUID.randomUUID().toString();
+    private static final long INTERVAL = Long.getLong("com.maxdemarzi.boolean.replication.interval", 1000);
+    // Entries from peers ahead of us wait at most this many at a time
+    private static final int MAX_PENDING = 10_000;
+
+    private static final byte STRING = 0;
+    private static final byte LONG = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte BOOLEAN = 3;
+
+    private static final ScheduledExecutorService replicator = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "boolean-filter-replication");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static class Entry {
+        final Triple<Label, String, Object> key;
+        final long transactionId;
+        final Roaring64NavigableMap bitmap;
+
+        Entry(Triple<Label, String, Object> key, long transactionId, Roaring64NavigableMap bitmap) {
+            this.key = key;
+            this.transactionId = transactionId;
+            this.bitmap = bitmap;
+        }
+    }
+
+    private final DatabaseCaches database;
+    private final ReplicationTransport transport;
+    private final TransactionIdStore transactions;
+    private final List<Entry> pending = new ArrayList<>();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private ScheduledFuture<?> applying;
+
+    private Replication(DatabaseCaches database, ReplicationTransport transport, TransactionIdStore transactions) {
+        this.database = database;
+        this.transport = transport;
+        this.transactions = transactions;
+    }
+
+    // The replication of a database, or null when it is off or can't be set up
+    static Replication of(DatabaseCaches database) {
+        String directory = System.getProperty("com.maxdemarzi.boolean.replication");
+        String transportClass = System.getProperty("com.maxdemarzi.boolean.replication.transport");
+        if (directory == null && transportClass == null) {
+            return null;
+        }
+        try {
+            ReplicationTransport transport = transportClass != null
+                    ? (ReplicationTransport) Class.forName(transportClass).getConstructor(String.class).newInstance(database.name)
+                    : new DirectoryTransport(Paths.get(directory, database.name), INSTANCE);
+            TransactionIdStore transactions = ((GraphDatabaseAPI) database.graph).getDependencyResolver()
+                    .resolveDependency(TransactionIdStore.class);
+            return new Replication(database, transport, transactions);
+        } catch (Exception exception) {
+            database.logger.warn("Unable to replicate the cached bitmaps of " + database.name, exception);
+            return null;
+        }
+    }
+
+    void start() {
+        applying = replicator.scheduleWithFixedDelay(this::apply, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (applying != null) {
+            applying.cancel(false);
+        }
+    }
+
+    long transactionId() {
+        return transactions.getLastClosedTransactionId();
+    }
+
+    // Publishes a bitmap loaded after the given transaction, unless another one closed while it was loading
+    void publish(Triple<Label, String, Object> key, long transactionId, Roaring64NavigableMap bitmap) {
+        if (transactionId() != transactionId || !isReplicable(key.getRight())) {
+            return;
+        }
+        // Serialized off the loader pool, the query is waiting on the bitmap, not on the peers
+        replicator.execute(() -> {
+            try {
+                transport.publish(encode(new Entry(key, transactionId, bitmap)));
+                published.incrementAndGet();
+            } catch (Exception exception) {
+                database.logger.warn("Unable to publish " + key, exception);
+            }
+        });
+    }
+
+    // Applies the entries of the peers that are valid at our last closed transaction
+    void apply() {
+        try {
+            for (byte[] bytes : transport.receive()) {
+                pending.add(decode(bytes));
+            }
+            long current = transactionId();
+            Iterator<Entry> entries = pending.iterator();
+            while (entries.hasNext()) {
+                Entry entry = entries.next();
+                if (entry.transactionId > current) {
+                    continue;
+                }
+                entries.remove();
+                if (entry.transactionId < current) {
+                    dropped.incrementAndGet();
+                } else if (database.valueCache.synchronous().asMap().putIfAbsent(entry.key, entry.bitmap) == null) {
+                    applied.incrementAndGet();
+                    Compactor.compact(database.valueCache, entry.key, entry.bitmap);
+                }
+            }
+            while (pending.size() > MAX_PENDING) {
+                pending.remove(0);
+                dropped.incrementAndGet();
+            }
+        } catch (Exception exception) {
+            database.logger.warn("Unable to apply the replicated bitmaps of " + database.name, exception);
+        }
+    }
+
+    Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("transactionId", transactionId());
+        stats.put("published", published.get());
+        stats.put("applied", applied.get());
+        stats.put("dropped", dropped.get());
+        // A replica that keeps applying writes is rarely at the transaction a peer loaded at, and drops most of what it receives
+        long received = applied.get() + dropped.get();
+        stats.put("appliedRatio", received == 0 ? 0.0 : (double) applied.get() / received);
+        return stats;
+    }
+
+    // Values are whatever a query passed in, only the ones Cypher maps hold are replicated
+    private static boolean isReplicable(Object value) {
+        return value instanceof String || value instanceof Long || value instanceof Double || value instanceof Boolean;
+    }
+
+    static byte[] encode(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(entry.transactionId);
+            out.writeUTF(entry.key.getLeft().name());
+            out.writeUTF(entry.key.getMiddle());
+            Object value = entry.key.getRight();
+            if (value instanceof String) {
+                out.writeByte(STRING);
+                out.writeUTF((String) value);
+            } else if (value instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) value);
+            } else {
+                out.writeByte(BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            }
+            byte[] bitmap = Bitmaps.serialize(entry.bitmap);
+            out.writeInt(bitmap.length);
+            out.write(bitmap);
+        }
+        return bytes.toByteArray();
+    }
+
+    static Entry decode(byte[] bytes) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            long transactionId = in.readLong();
+            Label label = Label.label(in.readUTF());
+            String property = in.readUTF();
+            Object value;
+            byte type = in.readByte();
+            switch (type) {
+                case STRING: value = in.readUTF(); break;
+                case LONG: value = in.readLong(); break;
+                case DOUBLE: value = in.readDouble(); break;
+                case BOOLEAN: value = in.readBoolean(); break;
+                default: throw new IOException("Unknown value type " + type);
+            }
+            byte[] bitmap = new byte[in.readInt()];
+            in.readFully(bitmap);
+            return new Entry(Triple.of(label, property, value), transactionId, Bitmaps.deserialize(bitmap));
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.maxdemarzi;
+
+import java.io.IOException;
+import java.util.List;
+
+// Carries replicated cache entries between the instances of a cluster. Entries are opaque bytes,
+// published by one instance and received once by every other instance serving the same database.
+// A transport named with -Dcom.maxdemarzi.boolean.replication.transport needs a public constructor taking the database name.
+public interface ReplicationTransport {
+
+    void publish(byte[] entry) throws IOException;
+
+    // The entries published by other instances since the last call
+    List<byte[]> receive() throws IOException;
+}
@@ -0,0 +1,79 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.Label;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+// A fixed sample of the 65536 id chunks of a label (one Roaring container each), for approximate counts.
+// Filters are evaluated only inside the sampled chunks, and the count is scaled by how many of the label's
+// nodes the sample holds, a ratio estimate with a 95% error bound from the spread between chunks.
+public class Sample {
+    private static final int CHUNK_BITS = 16;
+
+    public final Roaring64NavigableMap mask = new Roaring64NavigableMap();
+    private final long[] chunks;
+    private final long[] labelCounts;
+    private final long labelNodes;
+    private final long totalChunks;
+
+    Sample(Roaring64NavigableMap labelIds, double fraction) {
+        labelNodes = labelIds.getLongCardinality();
+        totalChunks = labelNodes == 0 ? 0 : (labelIds.select(labelNodes - 1) >>> CHUNK_BITS) + 1;
+        long stride = Math.max(1, Math.round(1 / Math.min(1, Math.max(fraction, Double.MIN_VALUE))));
+
+        chunks = new long[(int) ((totalChunks + stride - 1) / stride)];
+        labelCounts = new long[chunks.length];
+        for (int i = 0; i < chunks.length; i++) {
+            long start = (i * stride) << CHUNK_BITS;
+            long end = start + (1L << CHUNK_BITS);
+            chunks[i] = i * stride;
+            labelCounts[i] = count(labelIds, start, end);
+            // Adding the first id on its own keeps the range in a RoaringBitmap, see IdBuffer
+            mask.addLong(start);
+            mask.add(start + 1, end);
+        }
+        mask.runOptimize();
+    }
+
+    public static Sample of(DatabaseCaches database, Label label, double fraction) {
+        return new Sample(database.labelCache.get(label), fraction);
+    }
+
+    // True when every chunk is sampled, so the counts are exact
+    public boolean isComplete() {
+        return chunks.length == totalChunks;
+    }
+
+    // The estimated count and error bound of the node ids found in the sampled chunks
+    public long[] estimate(Roaring64NavigableMap sampledIds) {
+        long sampled = sampledIds.getLongCardinality();
+        if (isComplete()) {
+            return new long[]{sampled, 0};
+        }
+        long sampledLabelNodes = 0;
+        for (long count : labelCounts) {
+            sampledLabelNodes += count;
+        }
+        if (sampledLabelNodes == 0) {
+            return new long[]{0, labelNodes};
+        }
+
+        double ratio = (double) sampled / sampledLabelNodes;
+        // A single chunk has no spread to bound the error with, so it could be anywhere up to every node
+        if (chunks.length < 2) {
+            return new long[]{Math.round(ratio * labelNodes), labelNodes};
+        }
+        double squares = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            long start = chunks[i] << CHUNK_BITS;
+            double residual = count(sampledIds, start, start + (1L << CHUNK_BITS)) - ratio * labelCounts[i];
+            squares += residual * residual;
+        }
+        double n = chunks.length;
+        double variance = totalChunks * (double) totalChunks * (1 - n / totalChunks) / n * squares / (n - 1);
+        return new long[]{Math.round(ratio * labelNodes), Math.round(1.96 * Math.sqrt(variance))};
+    }
+
+    private static long count(Roaring64NavigableMap ids, long start, long end) {
+        return ids.rankLong(end - 1) - (start == 0 ? 0 : ids.rankLong(start - 1));
+    }
+}
@@ -0,0 +1,197 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.Label;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Named queries whose result bitmaps are kept materialized, so a query can use {segment: name} as a filter
+// instead of evaluating the saved query again. A segment may use segments defined before it,
+// and they are refreshed before it, so a segment always sees fresh segments under it.
+// A segment other segments use can't be dropped until they are.
+// Each database has its own segments, all refreshed on a single thread.
+public class Segments {
+
+    public static class Segment {
+        public final String name;
+        public final Label label;
+        public final Map<String, Object> query;
+        volatile Roaring64NavigableMap nodeIds;
+        volatile long size;
+        volatile long millis;
+
+        Segment(String name, Label label, Map<String, Object> query) {
+            this.name = name;
+            this.label = label;
+            this.query = query;
+        }
+
+        public Roaring64NavigableMap nodeIds() {
+            return nodeIds;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public long millis() {
+            return millis;
+        }
+
+        // Evaluates the query and swaps the new bitmap in, queries already using the old one keep it
+        void refresh(DatabaseCaches database) {
+            long start = System.nanoTime();
+            Roaring64NavigableMap refreshed = Procedures.filter(database, label, query, QueryProfile.NONE);
+            refreshed.runOptimize();
+            size = refreshed.getLongCardinality();
+            nodeIds = refreshed;
+            millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+    }
+
+    private static final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "boolean-filter-segments");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final DatabaseCaches database;
+    private final Map<String, Segment> segments = Collections.synchronizedMap(new LinkedHashMap<>());
+    private ScheduledFuture<?> refreshing;
+
+    Segments(DatabaseCaches database) {
+        this.database = database;
+    }
+
+    void start() {
+        refreshing = refresher.scheduleWithFixedDelay(this::refreshAll, 10, 10, TimeUnit.MINUTES);
+    }
+
+    // Stops refreshing the segments of a database that is gone
+    void stop() {
+        if (refreshing != null) {
+            refreshing.cancel(false);
+        }
+    }
+
+    public Segment define(String name, Label label, Map<String, Object> query) {
+        Set<String> uses = new HashSet<>();
+        uses(query, uses);
+        for (String used : uses) {
+            if (used.equals(name) || dependsOn(used, name)) {
+                throw new IllegalArgumentException("Segment " + name + " can't use itself");
+            }
+            if (!segments.containsKey(used)) {
+                throw new IllegalArgumentException("Segment " + used + " used by " + name + " is not defined");
+            }
+        }
+
+        Segment segment = new Segment(name, label, query);
+        segment.refresh(database);
+        // A redefined segment keeps its place, refreshAll orders segments by what they use
+        segments.put(name, segment);
+        return segment;
+    }
+
+    public Segment drop(String name) {
+        synchronized (segments) {
+            List<String> dependents = new ArrayList<>();
+            for (Segment segment : segments.values()) {
+                Set<String> uses = new HashSet<>();
+                uses(segment.query, uses);
+                if (uses.contains(name)) {
+                    dependents.add(segment.name);
+                }
+            }
+            if (!dependents.isEmpty()) {
+                throw new IllegalArgumentException("Segment " + name + " is used by " + String.join(", ", dependents));
+            }
+            return segments.remove(name);
+        }
+    }
+
+    public Segment get(String name) {
+        Segment segment = segments.get(name);
+        if (segment == null) {
+            throw new IllegalArgumentException("Segment " + name + " is not defined");
+        }
+        return segment;
+    }
+
+    public List<Segment> list() {
+        synchronized (segments) {
+            return new ArrayList<>(segments.values());
+        }
+    }
+
+    // Refreshes every segment after the segments it uses
+    void refreshAll() {
+        List<Segment> ordered = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        Map<String, Segment> defined = new LinkedHashMap<>();
+        for (Segment segment : list()) {
+            defined.put(segment.name, segment);
+        }
+        for (Segment segment : defined.values()) {
+            order(segment, defined, visited, ordered);
+        }
+        for (Segment segment : ordered) {
+            try {
+                segment.refresh(database);
+            } catch (Exception exception) {
+                database.logger.warn("Unable to refresh segment " + segment.name, exception);
+            }
+        }
+    }
+
+    private static void order(Segment segment, Map<String, Segment> defined, Set<String> visited, List<Segment> ordered) {
+        if (!visited.add(segment.name)) {
+            return;
+        }
+        Set<String> uses = new HashSet<>();
+        uses(segment.query, uses);
+        for (String used : uses) {
+            Segment usedSegment = defined.get(used);
+            if (usedSegment != null) {
+                order(usedSegment, defined, visited, ordered);
+            }
+        }
+        ordered.add(segment);
+    }
+
+    private boolean dependsOn(String name, String target) {
+        Segment segment = segments.get(name);
+        if (segment == null) {
+            return false;
+        }
+        Set<String> uses = new HashSet<>();
+        uses(segment.query, uses);
+        for (String used : uses) {
+            if (used.equals(target) || dependsOn(used, target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Collects the names of the segments a query uses
+    private static void uses(Map<?, ?> query, Set<String> names) {
+        if (query.get("segment") instanceof String) {
+            names.add((String) query.get("segment"));
+        }
+        for (String key : List.of("and", "or", "of")) {
+            if (query.get(key) instanceof List) {
+                for (Object entry : (List<?>) query.get(key)) {
+                    if (entry instanceof Map) {
+                        uses((Map<?, ?>) entry, names);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Registered queries whose results are kept current as transactions commit, so a consumer polling for the nodes
+// entering or leaving them only fetches what changed since its last token instead of evaluating the query again.
+// Only the nodes a transaction touched are checked against the query, and a query keeps its latest changes,
+// a consumer whose token is older than those starts over from the whole result.
+// A relationship changing touches neither of its nodes' own properties, so queries can't hop across relationships.
+public class StandingQueries {
+    // This many changes are kept per query
+    static final int MAX_CHANGES = 1_000;
+
+    // Tokens are never reused, even across queries, so a token of a dropped or redefined query is never mistaken for a current one
+    private static final AtomicLong tokens = new AtomicLong();
+
+    private static final ExecutorService updater = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "boolean-filter-standing");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static class Change {
+        public final long token;
+        public final Roaring64NavigableMap added;
+        public final Roaring64NavigableMap removed;
+        public final boolean reset;
+
+        Change(long token, Roaring64NavigableMap added, Roaring64NavigableMap removed, boolean reset) {
+            this.token = token;
+            this.added = added;
+            this.removed = removed;
+            this.reset = reset;
+        }
+    }
+
+    public static class StandingQuery {
+        public final String name;
+        public final Label label;
+        public final Map<String, Object> query;
+        // Null until the first result is read from the graph
+        private Roaring64NavigableMap nodeIds;
+        // The token the oldest change was made from, and the changes since, oldest first
+        private long base;
+        private final Deque<Change> changes = new ArrayDeque<>();
+
+        StandingQuery(String name, Label label, Map<String, Object> query) {
+            this.name = name;
+            this.label = label;
+            this.query = query;
+        }
+
+        // The first result, changes are kept from here on
+        synchronized void start(Roaring64NavigableMap nodeIds) {
+            this.nodeIds = nodeIds;
+            this.base = tokens.incrementAndGet();
+        }
+
+        public synchronized long size() {
+            return nodeIds == null ? 0 : nodeIds.getLongCardinality();
+        }
+
+        public synchronized long token() {
+            return changes.isEmpty() ? base : changes.getLast().token;
+        }
+
+        // Applies what the touched nodes match now, keeping the change when there is one
+        synchronized void update(Roaring64NavigableMap touched, Roaring64NavigableMap matched) {
+            // Transactions committed before the first result are already in it
+            if (nodeIds == null) {
+                return;
+            }
+            Roaring64NavigableMap before = copy(nodeIds);
+            before.and(touched);
+            Roaring64NavigableMap added = copy(matched);
+            added.andNot(before);
+            Roaring64NavigableMap removed = before;
+            removed.andNot(matched);
+            if (added.isEmpty() && removed.isEmpty()) {
+                return;
+            }
+            nodeIds.andNot(removed);
+            nodeIds.or(added);
+            changes.addLast(new Change(tokens.incrementAndGet(), added, removed, false));
+            if (changes.size() > MAX_CHANGES) {
+                base = changes.removeFirst().token;
+            }
+        }
+
+        // The net change since the token, or the whole result when the token is no longer known
+        public synchronized Change since(long token) {
+            if (token != base && changes.stream().noneMatch(change -> change.token == token)) {
+                return new Change(token(), nodeIds == null ? new Roaring64NavigableMap() : copy(nodeIds), new Roaring64NavigableMap(), true);
+            }
+            Roaring64NavigableMap added = new Roaring64NavigableMap();
+            Roaring64NavigableMap removed = new Roaring64NavigableMap();
+            for (Change change : changes) {
+                if (change.token <= token) {
+                    continue;
+                }
+                // A node removed since the token and added back is unchanged, and the other way around
+                Roaring64NavigableMap back = copy(change.added);
+                back.and(removed);
+                removed.andNot(back);
+                Roaring64NavigableMap entered = copy(change.added);
+                entered.andNot(back);
+                added.or(entered);
+
+                Roaring64NavigableMap gone = copy(change.removed);
+                gone.and(added);
+                added.andNot(gone);
+                Roaring64NavigableMap left = copy(change.removed);
+                left.andNot(gone);
+                removed.or(left);
+            }
+            return new Change(token(), added, removed, false);
+        }
+    }
+
+    private final DatabaseCaches database;
+    private final Map<String, StandingQuery> queries = new ConcurrentHashMap<>();
+
+    StandingQueries(DatabaseCaches database) {
+        this.database = database;
+    }
+
+    // Registers the query before reading its first result, so no transaction committing meanwhile is missed:
+    // the ones queued before are in the result, the ones after check their nodes against it.
+    // The result is read from the graph on the updater thread, behind the transactions already queued,
+    // since cached bitmaps may be older than the changes that follow.
+    public StandingQuery register(String name, Label label, Map<String, Object> query) {
+        if (hasRelationship(query)) {
+            throw new IllegalArgumentException("Standing query " + name + " can't have relationship filters, " +
+                    "relationship changes don't touch the nodes they would match");
+        }
+        StandingQuery standing = new StandingQuery(name, label, query);
+        queries.put(name, standing);
+        try {
+            CompletableFuture.runAsync(() -> standing.start(Procedures.recheck(database, label, query, PropertyScanner.nodes(database, label))), updater)
+                    .join();
+        } catch (CompletionException exception) {
+            queries.remove(name, standing);
+            throw exception;
+        }
+        return standing;
+    }
+
+    private static boolean hasRelationship(Object query) {
+        if (query instanceof Map<?, ?>) {
+            Map<?, ?> map = (Map<?, ?>) query;
+            if (map.containsKey("relationship")) {
+                return true;
+            }
+            for (Object value : map.values()) {
+                if (hasRelationship(value)) {
+                    return true;
+                }
+            }
+        } else if (query instanceof List<?>) {
+            for (Object value : (List<?>) query) {
+                if (hasRelationship(value)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public StandingQuery drop(String name) {
+        return queries.remove(name);
+    }
+
+    public StandingQuery get(String name) {
+        StandingQuery standing = queries.get(name);
+        if (standing == null) {
+            throw new IllegalArgumentException("Standing query " + name + " is not registered");
+        }
+        return standing;
+    }
+
+    // Collects the nodes a committed transaction touched, and checks them against every query in the background,
+    // one transaction after the other
+    void update(TransactionData data) {
+        if (queries.isEmpty()) {
+            return;
+        }
+        Roaring64NavigableMap touched = new Roaring64NavigableMap();
+        Roaring64NavigableMap deleted = new Roaring64NavigableMap();
+        for (Node node : data.createdNodes()) {
+            touched.addLong(node.getId());
+        }
+        for (Node node : data.deletedNodes()) {
+            deleted.addLong(node.getId());
+        }
+        for (LabelEntry entry : data.assignedLabels()) {
+            touched.addLong(entry.node().getId());
+        }
+        for (LabelEntry entry : data.removedLabels()) {
+            touched.addLong(entry.node().getId());
+        }
+        for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+            touched.addLong(entry.entity().getId());
+        }
+        for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+            touched.addLong(entry.entity().getId());
+        }
+        touched.andNot(deleted);
+        if (touched.isEmpty() && deleted.isEmpty()) {
+            return;
+        }
+
+        updater.execute(() -> {
+            for (StandingQuery standing : queries.values()) {
+                try {
+                    Roaring64NavigableMap matched = Procedures.recheck(database, standing.label, standing.query, touched);
+                    Roaring64NavigableMap checked = copy(touched);
+                    checked.or(deleted);
+                    standing.update(checked, matched);
+                } catch (Exception exception) {
+                    database.logger.warn("Unable to update standing query " + standing.name, exception);
+                }
+            }
+        });
+    }
+
+    private static Roaring64NavigableMap copy(Roaring64NavigableMap bitmap) {
+        Roaring64NavigableMap copy = new Roaring64NavigableMap();
+        copy.or(bitmap);
+        return copy;
+    }
+}
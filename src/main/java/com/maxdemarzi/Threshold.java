@@ -0,0 +1,71 @@
+package com.maxdemarzi;
+
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// The nodes matching at least k of n filters, optionally weighted, without expanding into every combination.
+// Each node gets a binary counter held as bit slices: slice i has the nodes whose count has bit i set.
+// Adding a filter ripples its bitmap through the slices like a carry (an AND and an XOR per slice),
+// and the slices are then compared against k from the highest bit down, so the cost grows linearly with n.
+public class Threshold {
+
+    public static Roaring64NavigableMap atLeast(List<Roaring64NavigableMap> inputs, List<Long> weights, long k) {
+        Roaring64NavigableMap any = new Roaring64NavigableMap();
+        List<Roaring64NavigableMap> slices = new ArrayList<>();
+        for (int i = 0; i < inputs.size(); i++) {
+            Roaring64NavigableMap input = inputs.get(i);
+            long weight = weights == null ? 1 : weights.get(i);
+            any.or(input);
+            // A weight adds the bitmap once at each of its set bits
+            for (int bit = 0; weight >> bit > 0; bit++) {
+                if ((weight >> bit & 1) == 1) {
+                    add(slices, copy(input), bit);
+                }
+            }
+        }
+        // A count can't reach a k wider than the slices
+        if (64 - Long.numberOfLeadingZeros(k) > slices.size()) {
+            return new Roaring64NavigableMap();
+        }
+
+        // Nodes equal to k on the bits seen so far, and nodes already greater than it
+        Roaring64NavigableMap equal = any;
+        Roaring64NavigableMap greater = new Roaring64NavigableMap();
+        for (int bit = slices.size() - 1; bit >= 0; bit--) {
+            Roaring64NavigableMap slice = slices.get(bit);
+            if ((k >> bit & 1) == 1) {
+                equal.and(slice);
+            } else {
+                Roaring64NavigableMap above = copy(equal);
+                above.and(slice);
+                greater.or(above);
+                equal.andNot(slice);
+            }
+        }
+        greater.or(equal);
+        return greater;
+    }
+
+    // Adds the carry to the counters starting at the given bit, growing the slices as needed
+    private static void add(List<Roaring64NavigableMap> slices, Roaring64NavigableMap carry, int bit) {
+        while (!carry.isEmpty()) {
+            while (slices.size() <= bit) {
+                slices.add(new Roaring64NavigableMap());
+            }
+            Roaring64NavigableMap slice = slices.get(bit);
+            Roaring64NavigableMap next = copy(slice);
+            next.and(carry);
+            slice.xor(carry);
+            carry = next;
+            bit++;
+        }
+    }
+
+    private static Roaring64NavigableMap copy(Roaring64NavigableMap bitmap) {
+        Roaring64NavigableMap copy = new Roaring64NavigableMap();
+        copy.or(bitmap);
+        return copy;
+    }
+}
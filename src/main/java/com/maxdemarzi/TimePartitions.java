@@ -0,0 +1,208 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.Label;
+import org.neo4j.internal.kernel.api.IndexQuery;
+import org.neo4j.values.storable.DateValue;
+import org.neo4j.values.storable.Value;
+import org.neo4j.values.storable.Values;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// The node ids of a (label, date property) split by month, each month holding the bitmaps of its days,
+// their union, and the lowest and highest node id in it.
+// A date range only touches the months it overlaps: whole months use their union, the months at either end
+// their days. Months before the current one are run optimized when built. Readers copy out of the months under
+// the read lock, so late changes to any month are made in place under the write lock.
+public class TimePartitions {
+
+    public static class Partition {
+        public final YearMonth month;
+        final TreeMap<LocalDate, Roaring64NavigableMap> days;
+        final Roaring64NavigableMap nodeIds = new Roaring64NavigableMap();
+        public final boolean optimized;
+        long minId = Long.MAX_VALUE;
+        long maxId = -1;
+
+        Partition(YearMonth month, TreeMap<LocalDate, Roaring64NavigableMap> days, boolean optimized) {
+            this.month = month;
+            this.days = days;
+            this.optimized = optimized;
+            for (Roaring64NavigableMap day : days.values()) {
+                nodeIds.or(day);
+            }
+            if (optimized) {
+                days.values().forEach(Roaring64NavigableMap::runOptimize);
+                nodeIds.runOptimize();
+            }
+            bounds();
+        }
+
+        public long nodes() {
+            return nodeIds.getLongCardinality();
+        }
+
+        public long minId() {
+            return minId;
+        }
+
+        public long maxId() {
+            return maxId;
+        }
+
+        private void bounds() {
+            long nodes = nodeIds.getLongCardinality();
+            minId = nodes == 0 ? Long.MAX_VALUE : nodeIds.select(0);
+            maxId = nodes == 0 ? -1 : nodeIds.select(nodes - 1);
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<YearMonth, Partition> partitions = new TreeMap<>();
+
+    public TimePartitions(Map<Object, Roaring64NavigableMap> valueIds) {
+        YearMonth current = YearMonth.now();
+        TreeMap<YearMonth, TreeMap<LocalDate, Roaring64NavigableMap>> months = new TreeMap<>();
+        valueIds.forEach((value, bitmap) -> {
+            // Only dates are partitioned
+            if (value instanceof LocalDate) {
+                LocalDate day = (LocalDate) value;
+                months.computeIfAbsent(YearMonth.from(day), k -> new TreeMap<>()).put(day, bitmap);
+            }
+        });
+        months.forEach((month, days) -> partitions.put(month, new Partition(month, days, month.isBefore(current))));
+    }
+
+    public static TimePartitions build(DatabaseCaches database, Label label, String property) throws Exception {
+        return new TimePartitions(PropertyScanner.scan(database, label, property));
+    }
+
+    public List<Partition> partitions() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(partitions.values());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long sizeInBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (Partition partition : partitions.values()) {
+                bytes += partition.nodeIds.getLongSizeInBytes();
+                for (Roaring64NavigableMap day : partition.days.values()) {
+                    bytes += day.getLongSizeInBytes();
+                }
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // True when the predicate is a date range these partitions can answer
+    public static boolean accepts(IndexQuery predicate) {
+        if (!(predicate instanceof IndexQuery.RangePredicate)) {
+            return false;
+        }
+        IndexQuery.RangePredicate<?> range = (IndexQuery.RangePredicate<?>) predicate;
+        return isDateOrNone(range.fromValue()) && isDateOrNone(range.toValue())
+                && (range.fromValue() instanceof DateValue || range.toValue() instanceof DateValue);
+    }
+
+    private static boolean isDateOrNone(Value value) {
+        return value == null || value == Values.NO_VALUE || value instanceof DateValue;
+    }
+
+    // The node ids with a date in the range, from the overlapping months only
+    public Roaring64NavigableMap get(IndexQuery predicate) {
+        IndexQuery.RangePredicate<?> range = (IndexQuery.RangePredicate<?>) predicate;
+        LocalDate from = first(range.fromValue(), range.fromInclusive(), 1);
+        LocalDate to = first(range.toValue(), range.toInclusive(), -1);
+
+        Roaring64NavigableMap bitmap = new Roaring64NavigableMap();
+        lock.readLock().lock();
+        try {
+            for (Partition partition : overlapping(from, to)) {
+                if (!partition.month.atDay(1).isBefore(from) && !partition.month.atEndOfMonth().isAfter(to)) {
+                    bitmap.or(partition.nodeIds);
+                } else {
+                    for (Roaring64NavigableMap day : partition.days.subMap(from, true, to, true).values()) {
+                        bitmap.or(day);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return bitmap;
+    }
+
+    // The lowest and highest node id of the months the range overlaps, or null when it overlaps none
+    public long[] idRange(IndexQuery predicate) {
+        IndexQuery.RangePredicate<?> range = (IndexQuery.RangePredicate<?>) predicate;
+        LocalDate from = first(range.fromValue(), range.fromInclusive(), 1);
+        LocalDate to = first(range.toValue(), range.toInclusive(), -1);
+
+        long min = Long.MAX_VALUE;
+        long max = -1;
+        lock.readLock().lock();
+        try {
+            for (Partition partition : overlapping(from, to)) {
+                min = Math.min(min, partition.minId);
+                max = Math.max(max, partition.maxId);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return max < 0 ? null : new long[]{min, max};
+    }
+
+    private Collection<Partition> overlapping(LocalDate from, LocalDate to) {
+        if (from.isAfter(to)) {
+            return Collections.emptyList();
+        }
+        return partitions.subMap(YearMonth.from(from), true, YearMonth.from(to), true).values();
+    }
+
+    // The first day inside one end of the range, stepping in by a day when that end is exclusive
+    private static LocalDate first(Value bound, boolean inclusive, int step) {
+        if (!(bound instanceof DateValue)) {
+            return step > 0 ? LocalDate.MIN : LocalDate.MAX;
+        }
+        LocalDate day = ((DateValue) bound).asObjectCopy();
+        return inclusive ? day : day.plusDays(step);
+    }
+
+    // Moves a node from the day of its old date to the day of its new one, either of which may be null
+    public void update(Value before, Value after, long nodeId) {
+        lock.writeLock().lock();
+        try {
+            if (before instanceof DateValue) {
+                LocalDate day = ((DateValue) before).asObjectCopy();
+                Partition partition = partitions.get(YearMonth.from(day));
+                if (partition != null && partition.days.containsKey(day)) {
+                    partition.days.get(day).removeLong(nodeId);
+                    partition.nodeIds.removeLong(nodeId);
+                    partition.bounds();
+                }
+            }
+            if (after instanceof DateValue) {
+                LocalDate day = ((DateValue) after).asObjectCopy();
+                YearMonth month = YearMonth.from(day);
+                Partition partition = partitions.computeIfAbsent(month, k -> new Partition(k, new TreeMap<>(), false));
+                partition.days.computeIfAbsent(day, k -> new Roaring64NavigableMap()).addLong(nodeId);
+                partition.nodeIds.addLong(nodeId);
+                partition.minId = Math.min(partition.minId, nodeId);
+                partition.maxId = Math.max(partition.maxId, nodeId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
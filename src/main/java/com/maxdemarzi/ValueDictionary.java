@@ -0,0 +1,352 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.Label;
+import org.neo4j.internal.kernel.api.IndexQuery;
+import org.neo4j.values.storable.TextValue;
+import org.neo4j.values.storable.Value;
+import org.neo4j.values.storable.ValueGroup;
+import org.neo4j.values.storable.Values;
+import org.roaringbitmap.longlong.LongIterator;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+// The distinct values of one (label, property), sorted, with the bitmap of node ids holding each value.
+// A value's position in the sorted order is its code, so exact, prefix and range filters
+// become a contiguous range of codes whose bitmaps are unioned, without touching an index.
+// Committed changes are applied with update(), which keeps the dictionary current.
+public class ValueDictionary {
+    // Values of different groups (numbers, strings, dates...) are kept apart, each group sorted on its own
+    private static final Comparator<Value> ORDER = Comparator.comparing(Value::valueGroup).thenComparing(Values.COMPARATOR);
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Value[] values;
+    private Roaring64NavigableMap[] bitmaps;
+    // Changes every time codes move, so anything holding codes knows to rebuild
+    private volatile long version;
+    // How many node ids moved in all, and as of the last compaction
+    private long updates;
+    private long compactedAt;
+    private boolean compacting;
+
+    public ValueDictionary(Map<Object, Roaring64NavigableMap> valueIds) {
+        TreeMap<Value, Roaring64NavigableMap> sorted = new TreeMap<>(ORDER);
+        valueIds.forEach((value, bitmap) -> sorted.put(Values.of(value), bitmap));
+        values = sorted.keySet().toArray(new Value[0]);
+        bitmaps = sorted.values().toArray(new Roaring64NavigableMap[0]);
+    }
+
+    public static ValueDictionary build(DatabaseCaches database, Label label, String property) throws Exception {
+        return new ValueDictionary(PropertyScanner.scan(database, label, property));
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return values.length;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The values and how many of the node ids have them, in code order.
+    // With no node ids, every node counts.
+    public LinkedHashMap<Value, Long> counts(Roaring64NavigableMap nodeIds) {
+        lock.readLock().lock();
+        try {
+            LinkedHashMap<Value, Long> counts = new LinkedHashMap<>();
+            for (int code = 0; code < values.length; code++) {
+                if (nodeIds == null) {
+                    counts.put(values[code], bitmaps[code].getLongCardinality());
+                } else {
+                    Roaring64NavigableMap intersection = new Roaring64NavigableMap();
+                    intersection.or(bitmaps[code]);
+                    intersection.and(nodeIds);
+                    counts.put(values[code], intersection.getLongCardinality());
+                }
+            }
+            return counts;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The values and the node ids that have them, in code order
+    public LinkedHashMap<Value, Roaring64NavigableMap> intersections(Roaring64NavigableMap nodeIds) {
+        lock.readLock().lock();
+        try {
+            LinkedHashMap<Value, Roaring64NavigableMap> intersections = new LinkedHashMap<>();
+            for (int code = 0; code < values.length; code++) {
+                Roaring64NavigableMap intersection = new Roaring64NavigableMap();
+                intersection.or(nodeIds);
+                intersection.and(bitmaps[code]);
+                intersections.put(values[code], intersection);
+            }
+            return intersections;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The value of every code, as of the current version
+    public Value[] values() {
+        lock.readLock().lock();
+        try {
+            return values.clone();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long sizeInBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (Roaring64NavigableMap bitmap : bitmaps) {
+                bytes += bitmap.getLongSizeInBytes();
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Copies of the bitmaps of every value, keyed by the value as Cypher passes it to us
+    public Map<Object, Roaring64NavigableMap> bitmaps() {
+        lock.readLock().lock();
+        try {
+            Map<Object, Roaring64NavigableMap> copies = new HashMap<>();
+            for (int code = 0; code < values.length; code++) {
+                if (!bitmaps[code].isEmpty()) {
+                    Roaring64NavigableMap copy = new Roaring64NavigableMap();
+                    copy.or(bitmaps[code]);
+                    copies.put(PropertyScanner.asKeyValue(values[code]), copy);
+                }
+            }
+            return copies;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The first k of the node ids in value order, walking the codes and intersecting each with the node ids,
+    // so no more than k nodes are ever looked at. Ties are in node id order,
+    // and nodes without a value come last.
+    public List<Long> top(Roaring64NavigableMap nodeIds, long k, boolean descending) {
+        List<Long> top = new ArrayList<>();
+        Roaring64NavigableMap seen = new Roaring64NavigableMap();
+        lock.readLock().lock();
+        try {
+            for (int i = 0; i < values.length && top.size() < k; i++) {
+                Roaring64NavigableMap bitmap = bitmaps[descending ? values.length - 1 - i : i];
+                Roaring64NavigableMap matches = new Roaring64NavigableMap();
+                matches.or(bitmap);
+                matches.and(nodeIds);
+                LongIterator iterator = matches.getLongIterator();
+                while (iterator.hasNext() && top.size() < k) {
+                    long nodeId = iterator.next();
+                    top.add(nodeId);
+                    seen.addLong(nodeId);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        LongIterator iterator = nodeIds.getLongIterator();
+        while (iterator.hasNext() && top.size() < k) {
+            long nodeId = iterator.next();
+            if (!seen.contains(nodeId)) {
+                top.add(nodeId);
+            }
+        }
+        return top;
+    }
+
+    // The node ids with a value accepted by the predicate
+    public Roaring64NavigableMap get(IndexQuery predicate) {
+        Roaring64NavigableMap bitmap = new Roaring64NavigableMap();
+        lock.readLock().lock();
+        try {
+            int[] codes = codeRange(predicate);
+            if (codes != null) {
+                for (int code = codes[0]; code < codes[1]; code++) {
+                    bitmap.or(bitmaps[code]);
+                }
+            } else {
+                for (int code = 0; code < values.length; code++) {
+                    if (predicate.acceptsValue(values[code])) {
+                        bitmap.or(bitmaps[code]);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return bitmap;
+    }
+
+    // How many node ids have a value accepted by the predicate, without building their bitmap
+    public long count(IndexQuery predicate) {
+        long count = 0;
+        lock.readLock().lock();
+        try {
+            int[] codes = codeRange(predicate);
+            for (int code = 0; code < values.length; code++) {
+                if (codes != null ? code >= codes[0] && code < codes[1] : predicate.acceptsValue(values[code])) {
+                    count += bitmaps[code].getLongCardinality();
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return count;
+    }
+
+    // The node ids holding any of these values
+    public Roaring64NavigableMap get(Collection<Value> wanted) {
+        Roaring64NavigableMap bitmap = new Roaring64NavigableMap();
+        lock.readLock().lock();
+        try {
+            for (Value value : wanted) {
+                int code = Arrays.binarySearch(values, value, ORDER);
+                if (code >= 0) {
+                    bitmap.or(bitmaps[code]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return bitmap;
+    }
+
+    // Moves a node from the bitmap of its old value to the bitmap of its new one, either of which may be null
+    public void update(Value before, Value after, long nodeId) {
+        lock.writeLock().lock();
+        try {
+            if (before != null) {
+                int code = Arrays.binarySearch(values, before, ORDER);
+                if (code >= 0) {
+                    bitmaps[code].removeLong(nodeId);
+                }
+            }
+            if (after != null) {
+                int code = Arrays.binarySearch(values, after, ORDER);
+                if (code < 0) {
+                    code = insert(-code - 1, after);
+                }
+                bitmaps[code].addLong(nodeId);
+            }
+            updates++;
+            if (!compacting && updates - compactedAt >= Compactor.UPDATE_THRESHOLD) {
+                compacting = true;
+                Compactor.compact(this);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Swaps in run optimized copies of the bitmaps, unless node ids moved while they were being built
+    boolean compact() {
+        long seen;
+        Value[] valuesSeen;
+        Roaring64NavigableMap[] optimized;
+        lock.readLock().lock();
+        try {
+            seen = updates;
+            valuesSeen = values;
+            optimized = new Roaring64NavigableMap[bitmaps.length];
+            for (int code = 0; code < bitmaps.length; code++) {
+                optimized[code] = Compactor.optimize(bitmaps[code]);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            compacting = false;
+            if (updates != seen || values != valuesSeen) {
+                return false;
+            }
+            bitmaps = optimized;
+            compactedAt = updates;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int insert(int code, Value value) {
+        Value[] newValues = new Value[values.length + 1];
+        Roaring64NavigableMap[] newBitmaps = new Roaring64NavigableMap[bitmaps.length + 1];
+        System.arraycopy(values, 0, newValues, 0, code);
+        System.arraycopy(bitmaps, 0, newBitmaps, 0, code);
+        newValues[code] = value;
+        newBitmaps[code] = new Roaring64NavigableMap();
+        System.arraycopy(values, code, newValues, code + 1, values.length - code);
+        System.arraycopy(bitmaps, code, newBitmaps, code + 1, bitmaps.length - code);
+        values = newValues;
+        bitmaps = newBitmaps;
+        version++;
+        return code;
+    }
+
+    // The [from, to) codes of the values accepted by an exact, prefix or range predicate,
+    // or null when the accepted values aren't contiguous
+    int[] codeRange(IndexQuery predicate) {
+        if (predicate instanceof IndexQuery.ExactPredicate) {
+            int code = Arrays.binarySearch(values, ((IndexQuery.ExactPredicate) predicate).value(), ORDER);
+            return code >= 0 ? new int[]{code, code + 1} : new int[]{0, 0};
+        }
+        if (predicate instanceof IndexQuery.StringPrefixPredicate) {
+            TextValue prefix = ((IndexQuery.StringPrefixPredicate) predicate).prefix();
+            int from = firstFalse(value -> before(value, ValueGroup.TEXT) || (isGroup(value, ValueGroup.TEXT) && Values.COMPARATOR.compare(value, prefix) < 0));
+            int to = firstFalse(value -> before(value, ValueGroup.TEXT) || (isGroup(value, ValueGroup.TEXT)
+                    && (Values.COMPARATOR.compare(value, prefix) < 0 || ((TextValue) value).startsWith(prefix))));
+            return new int[]{from, Math.max(from, to)};
+        }
+        if (predicate instanceof IndexQuery.RangePredicate) {
+            IndexQuery.RangePredicate<?> range = (IndexQuery.RangePredicate<?>) predicate;
+            ValueGroup group = range.valueGroup();
+            Value lower = range.fromValue();
+            Value upper = range.toValue();
+            boolean hasLower = lower != null && lower != Values.NO_VALUE;
+            boolean hasUpper = upper != null && upper != Values.NO_VALUE;
+            int from = firstFalse(value -> before(value, group) || (isGroup(value, group) && hasLower
+                    && (Values.COMPARATOR.compare(value, lower) < 0 || (!range.fromInclusive() && Values.COMPARATOR.compare(value, lower) == 0))));
+            int to = firstFalse(value -> before(value, group) || (isGroup(value, group) && (!hasUpper
+                    || Values.COMPARATOR.compare(value, upper) < 0 || (range.toInclusive() && Values.COMPARATOR.compare(value, upper) == 0))));
+            return new int[]{from, Math.max(from, to)};
+        }
+        return null;
+    }
+
+    private static boolean before(Value value, ValueGroup group) {
+        return value.valueGroup().compareTo(group) < 0;
+    }
+
+    private static boolean isGroup(Value value, ValueGroup group) {
+        return value.valueGroup() == group;
+    }
+
+    // The first code for which the test fails, for a test that holds for a prefix of the codes
+    private int firstFalse(Predicate<Value> test) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (test.test(values[middle])) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
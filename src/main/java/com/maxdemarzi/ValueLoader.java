@@ -0,0 +1,92 @@
+package com.maxdemarzi;
+
+import com.github.benmanes.caffeine.cache.AsyncCacheLoader;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
+import org.neo4j.graphdb.Label;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+// Loads the valueCache bitmaps on the loader executor.
+// A bulk request is split by (label, property): the exact values of one property are loaded together
+// by a single task, every range or wildcard value is loaded by its own task, and all of them run in parallel.
+// Loaded bitmaps are handed to the Compactor, and published to the other instances when replicating.
+public class ValueLoader implements AsyncCacheLoader<Triple<Label, String, Object>, Roaring64NavigableMap> {
+    private final DatabaseCaches database;
+
+    ValueLoader(DatabaseCaches database) {
+        this.database = database;
+    }
+
+    @Override
+    public CompletableFuture<Roaring64NavigableMap> asyncLoad(Triple<Label, String, Object> key, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+                    long transactionId = transactionId();
+                    Roaring64NavigableMap bitmap = Procedures.getValues(database, key);
+                    publish(key, transactionId, bitmap);
+                    return bitmap;
+                }, executor)
+                .thenApply(bitmap -> compact(key, bitmap));
+    }
+
+    @Override
+    public CompletableFuture<Map<Triple<Label, String, Object>, Roaring64NavigableMap>> asyncLoadAll(
+            Iterable<? extends Triple<Label, String, Object>> keys, Executor executor) {
+        Map<Pair<Label, String>, List<Object>> exactValues = new HashMap<>();
+        List<CompletableFuture<Map<Triple<Label, String, Object>, Roaring64NavigableMap>>> loads = new ArrayList<>();
+
+        for (Triple<Label, String, Object> key : keys) {
+            if (Procedures.isExactValue(key.getRight())) {
+                exactValues.computeIfAbsent(Pair.of(key.getLeft(), key.getMiddle()), k -> new ArrayList<>()).add(key.getRight());
+            } else {
+                loads.add(asyncLoad(key, executor).thenApply(bitmap -> Map.of(key, bitmap)));
+            }
+        }
+
+        exactValues.forEach((labelAndProperty, values) -> {
+            if (values.size() == 1) {
+                Triple<Label, String, Object> key = Triple.of(labelAndProperty.getLeft(), labelAndProperty.getRight(), values.get(0));
+                loads.add(asyncLoad(key, executor).thenApply(bitmap -> Map.of(key, bitmap)));
+            } else {
+                loads.add(CompletableFuture.supplyAsync(() -> {
+                            long transactionId = transactionId();
+                            Map<Triple<Label, String, Object>, Roaring64NavigableMap> bitmaps =
+                                    Procedures.getExactValues(database, labelAndProperty.getLeft(), labelAndProperty.getRight(), values);
+                            bitmaps.forEach((key, bitmap) -> publish(key, transactionId, bitmap));
+                            return bitmaps;
+                        }, executor)
+                        .thenApply(bitmaps -> {
+                            bitmaps.forEach(this::compact);
+                            return bitmaps;
+                        }));
+            }
+        });
+
+        return CompletableFuture.allOf(loads.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+            Map<Triple<Label, String, Object>, Roaring64NavigableMap> bitmaps = new HashMap<>();
+            for (CompletableFuture<Map<Triple<Label, String, Object>, Roaring64NavigableMap>> load : loads) {
+                bitmaps.putAll(load.join());
+            }
+            return bitmaps;
+        });
+    }
+
+    private long transactionId() {
+        return database.replication == null ? 0 : database.replication.transactionId();
+    }
+
+    private void publish(Triple<Label, String, Object> key, long transactionId, Roaring64NavigableMap bitmap) {
+        if (database.replication != null) {
+            database.replication.publish(key, transactionId, bitmap);
+        }
+    }
+
+    // Once loaded, the bitmap is run optimized in the background
+    private Roaring64NavigableMap compact(Triple<Label, String, Object> key, Roaring64NavigableMap bitmap) {
+        Compactor.compact(database.valueCache, key, bitmap);
+        return bitmap;
+    }
+}
@@ -0,0 +1,81 @@
+package com.maxdemarzi.metrics;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Process wide registry of the latency histograms recorded by the procedures and the cache loader.
+public final class Metrics {
+    public static final String FILTER_PLANNING = "filter.planning";
+    public static final String FILTER_EVALUATION = "filter.evaluation";
+    public static final String FILTER_MATERIALIZATION = "filter.materialization";
+    public static final String VALUES_RANGE = "values.range";
+    public static final String VALUES_EXACT = "values.exact";
+    public static final String VALUES_WILDCARD = "values.wildcard";
+    public static final String VALUES_BULK = "values.bulk";
+
+    private static final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    public static void record(String name, long nanos) {
+        histogram(name).record(nanos);
+    }
+
+    public static Map<String, Object> latencies() {
+        Map<String, Object> latencies = new TreeMap<>();
+        histograms.forEach((name, histogram) -> latencies.put(name, histogram.snapshot()));
+        return latencies;
+    }
+
+    public static Map<String, Object> cacheStats(Cache<?, Roaring64NavigableMap> cache) {
+        CacheStats stats = cache.stats();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("estimatedSize", cache.estimatedSize());
+        map.put("memoryBytes", memoryBytes(cache));
+        map.put("requestCount", stats.requestCount());
+        map.put("hitCount", stats.hitCount());
+        map.put("missCount", stats.missCount());
+        map.put("hitRate", stats.hitRate());
+        map.put("loadSuccessCount", stats.loadSuccessCount());
+        map.put("loadFailureCount", stats.loadFailureCount());
+        map.put("totalLoadTime", stats.totalLoadTime());
+        map.put("averageLoadPenalty", stats.averageLoadPenalty());
+        map.put("evictionCount", stats.evictionCount());
+        return map;
+    }
+
+    public static long memoryBytes(Cache<?, Roaring64NavigableMap> cache) {
+        long bytes = 0;
+        for (Roaring64NavigableMap bitmap : cache.asMap().values()) {
+            bytes += bitmap.getLongSizeInBytes();
+        }
+        return bytes;
+    }
+
+    // Publishes the same numbers as com.maxdemarzi.boolean.stats under com.maxdemarzi.boolean:type=Stats,database=<name>,
+    // replacing the bean of a database that was dropped and created again
+    public static synchronized void registerMBean(String database, Cache<?, Roaring64NavigableMap> cache) {
+        try {
+            ObjectName name = new ObjectName("com.maxdemarzi.boolean:type=Stats,database=" + database);
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Stats(cache), name);
+        } catch (Exception ignored) {
+            // JMX is optional, the stats procedure still works without it
+        }
+    }
+}
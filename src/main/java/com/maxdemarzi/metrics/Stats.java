@@ -0,0 +1,70 @@
+package com.maxdemarzi.metrics;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+public class Stats implements StatsMXBean {
+    private final Cache<?, Roaring64NavigableMap> cache;
+
+    public Stats(Cache<?, Roaring64NavigableMap> cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public long getCacheEstimatedSize() {
+        return cache.estimatedSize();
+    }
+
+    @Override
+    public long getCacheMemoryBytes() {
+        return Metrics.memoryBytes(cache);
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    @Override
+    public long getCacheMissCount() {
+        return cache.stats().missCount();
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        return cache.stats().hitRate();
+    }
+
+    @Override
+    public long getCacheEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    @Override
+    public double getCacheAverageLoadPenalty() {
+        return cache.stats().averageLoadPenalty();
+    }
+
+    @Override
+    public long getFilterCount() {
+        return Metrics.histogram(Metrics.FILTER_EVALUATION).getCount();
+    }
+
+    @Override
+    public double getFilterMeanNanos() {
+        return Metrics.histogram(Metrics.FILTER_EVALUATION).getMean();
+    }
+
+    @Override
+    public long getFilterP99Nanos() {
+        return Metrics.histogram(Metrics.FILTER_EVALUATION).getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getValuesLoadCount() {
+        return Metrics.histogram(Metrics.VALUES_RANGE).getCount()
+                + Metrics.histogram(Metrics.VALUES_EXACT).getCount()
+                + Metrics.histogram(Metrics.VALUES_WILDCARD).getCount()
+                + Metrics.histogram(Metrics.VALUES_BULK).getCount();
+    }
+}
@@ -0,0 +1,15 @@
+package com.maxdemarzi.metrics;
+
+public interface StatsMXBean {
+    long getCacheEstimatedSize();
+    long getCacheMemoryBytes();
+    long getCacheHitCount();
+    long getCacheMissCount();
+    double getCacheHitRate();
+    long getCacheEvictionCount();
+    double getCacheAverageLoadPenalty();
+    long getFilterCount();
+    double getFilterMeanNanos();
+    long getFilterP99Nanos();
+    long getValuesLoadCount();
+}
@@ -0,0 +1,13 @@
+package com.maxdemarzi.results;
+
+public class BatchResult {
+    public final String id;
+    public final Long size;
+    public final byte[] bitmap;
+
+    public BatchResult(String id, Long size, byte[] bitmap) {
+        this.id = id;
+        this.size = size;
+        this.bitmap = bitmap;
+    }
+}
@@ -0,0 +1,11 @@
+package com.maxdemarzi.results;
+
+public class BitmapResult {
+    public final Long size;
+    public final byte[] bitmap;
+
+    public BitmapResult(Long size, byte[] bitmap) {
+        this.size = size;
+        this.bitmap = bitmap;
+    }
+}
@@ -0,0 +1,17 @@
+package com.maxdemarzi.results;
+
+import java.util.List;
+
+public class ChangesResult {
+    public final List<Long> added;
+    public final List<Long> removed;
+    public final Long token;
+    public final Boolean reset;
+
+    public ChangesResult(List<Long> added, List<Long> removed, Long token, Boolean reset) {
+        this.added = added;
+        this.removed = removed;
+        this.token = token;
+        this.reset = reset;
+    }
+}
@@ -0,0 +1,17 @@
+package com.maxdemarzi.results;
+
+public class ColumnResult {
+    public final String label;
+    public final String property;
+    public final Long nodes;
+    public final String type;
+    public final Long bytes;
+
+    public ColumnResult(String label, String property, Long nodes, String type, Long bytes) {
+        this.label = label;
+        this.property = property;
+        this.nodes = nodes;
+        this.type = type;
+        this.bytes = bytes;
+    }
+}
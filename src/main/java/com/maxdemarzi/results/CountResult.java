@@ -0,0 +1,13 @@
+package com.maxdemarzi.results;
+
+public class CountResult {
+    public final Long count;
+    public final Long error;
+    public final Boolean approximate;
+
+    public CountResult(Long count, Long error, Boolean approximate) {
+        this.count = count;
+        this.error = error;
+        this.approximate = approximate;
+    }
+}
@@ -0,0 +1,13 @@
+package com.maxdemarzi.results;
+
+public class FacetResult {
+    public final Object value;
+    public final Long count;
+    public final Long error;
+
+    public FacetResult(Object value, Long count, Long error) {
+        this.value = value;
+        this.count = count;
+        this.error = error;
+    }
+}
@@ -0,0 +1,17 @@
+package com.maxdemarzi.results;
+
+public class PartitionResult {
+    public final String month;
+    public final Long nodes;
+    public final Long minId;
+    public final Long maxId;
+    public final Boolean optimized;
+
+    public PartitionResult(String month, Long nodes, Long minId, Long maxId, Boolean optimized) {
+        this.month = month;
+        this.nodes = nodes;
+        this.minId = minId;
+        this.maxId = maxId;
+        this.optimized = optimized;
+    }
+}
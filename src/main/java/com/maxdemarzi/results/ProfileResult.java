@@ -0,0 +1,28 @@
+package com.maxdemarzi.results;
+
+import org.neo4j.graphdb.Node;
+
+import java.util.List;
+import java.util.Map;
+
+public class ProfileResult {
+    public final String formula;
+    public final List<String> paths;
+    public final Map<String, Object> timings;
+    public final List<Map<String, Object>> filters;
+    public final List<Map<String, Object>> steps;
+    public final List<Node> nodes;
+    public final Long size;
+
+    public ProfileResult(String formula, List<String> paths, Map<String, Object> timings,
+                         List<Map<String, Object>> filters, List<Map<String, Object>> steps,
+                         List<Node> nodes, Long size) {
+        this.formula = formula;
+        this.paths = paths;
+        this.timings = timings;
+        this.filters = filters;
+        this.steps = steps;
+        this.nodes = nodes;
+        this.size = size;
+    }
+}
@@ -0,0 +1,15 @@
+package com.maxdemarzi.results;
+
+public class SegmentResult {
+    public final String name;
+    public final String label;
+    public final Long size;
+    public final Long millis;
+
+    public SegmentResult(String name, String label, Long size, Long millis) {
+        this.name = name;
+        this.label = label;
+        this.size = size;
+        this.millis = millis;
+    }
+}
@@ -0,0 +1,15 @@
+package com.maxdemarzi.results;
+
+public class StandingResult {
+    public final String name;
+    public final String label;
+    public final Long size;
+    public final Long token;
+
+    public StandingResult(String name, String label, Long size, Long token) {
+        this.name = name;
+        this.label = label;
+        this.size = size;
+        this.token = token;
+    }
+}
@@ -0,0 +1,17 @@
+package com.maxdemarzi.results;
+
+public class WarmResult {
+    public final String property;
+    public final Long values;
+    public final Long nodes;
+    public final Long bytes;
+    public final Long millis;
+
+    public WarmResult(String property, Long values, Long nodes, Long bytes, Long millis) {
+        this.property = property;
+        this.values = values;
+        this.nodes = nodes;
+        this.bytes = bytes;
+        this.millis = millis;
+    }
+}
@@ -1,16 +1,32 @@
 package com.maxdemarzi;
 
+import org.apache.commons.lang3.tuple.Triple;
 import org.junit.jupiter.api.*;
 import org.neo4j.driver.*;
+import org.neo4j.driver.exceptions.ClientException;
 import org.neo4j.driver.types.Node;
 import org.neo4j.harness.Neo4j;
+import org.neo4j.graphdb.Label;
 import org.neo4j.harness.Neo4jBuilders;
+import org.neo4j.logging.NullLog;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class BooleanFilterTests {
@@ -148,6 +164,829 @@ public class BooleanFilterTests {
         }
     }
 
+    @Test
+    void shouldBooleanProfile() {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            // Given I've started Neo4j with the procedure
+            //       which my 'neo4j' rule above does.
+            Session session = driver.session();
+
+            // When I use the procedure
+            Result result = session.run( "CALL com.maxdemarzi.boolean.profile('Order', {not:false, and:[ " +
+                "{property: 'status', values: ['Unfulfilled'], not: false}," +
+                "{property: 'warehouse', values: ['Warehouse 3'], not: false}," +
+                "{property: 'season', values: ['Fall*'], not: false}," +
+                "{property: 'online', values: [true], not: true} ]})");
+
+            // Then I should get what I expect
+            Record record = result.single();
+            assertEquals(29L, record.get("size").asLong());
+            assertEquals(1, record.get("paths").size());
+            assertThat(record.get("timings").asMap()).containsKeys("planning", "loading", "filters", "bitmaps", "materialization");
+            assertEquals(4, record.get("filters").size());
+            ArrayList<Value> steps = new ArrayList<>(record.get("steps").asList(v -> v));
+            assertEquals("OR", steps.get(steps.size() - 1).get("operation").asString());
+            assertEquals(29L, steps.get(steps.size() - 1).get("cardinality").asLong());
+            assertEquals(29, record.get("nodes").size());
+        }
+    }
+
+    @Test
+    void shouldBooleanStats() throws Exception {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            // Given I've started Neo4j with the procedure
+            //       which my 'neo4j' rule above does.
+            Session session = driver.session();
+            session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'size', values: ['Small'], not: false}]});").consume();
+
+            // When I use the procedure
+            Result result = session.run( "CALL com.maxdemarzi.boolean.stats()");
+
+            // Then I should get what I expect
+            Value stats = result.single().get("value");
+            assertEquals("neo4j", stats.get("database").asString());
+            assertTrue(stats.get("budget").asLong() > 0);
+            assertTrue(stats.get("valueCache").get("requestCount").asLong() > 0);
+            assertTrue(stats.get("valueCache").get("memoryBytes").asLong() > 0);
+            assertTrue(stats.get("latencies").get("filter.evaluation").get("count").asLong() > 0);
+            assertTrue(stats.get("latencies").get("values.exact").get("count").asLong() > 0);
+
+            // Loaded bitmaps are run optimized in the background
+            session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'id', values: ['[1,1000]'], not: false}]});").consume();
+            stats = eventually(() -> session.run( "CALL com.maxdemarzi.boolean.stats()").single().get("value"),
+                    value -> value.get("compactions").asLong() > 0);
+            assertTrue(stats.get("compactions").asLong() > 0);
+            assertEquals(1000L, session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'id', values: ['[1,1000]'], not: false}]});")
+                    .single().get("size").asLong());
+        }
+    }
+
+    @Test
+    void shouldBooleanFilterManyValues() {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            // Given I've started Neo4j with the procedure
+            //       which my 'neo4j' rule above does.
+            Session session = driver.session();
+
+            session.run("CREATE INDEX ON :Order(city)");
+            // Wait for the index to be populated
+            session.run("CALL db.awaitIndexes(60)").consume();
+
+            // When I use the procedure
+            Result result = session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'city', values: " +
+                    "['Chicago', 'Aurora', 'Rockford', 'Joliet', 'Naperville', 'Springfield', 'Peoria', 'Elgin', 'Waukegan', 'Champaign'], not: false}]});");
+
+            // Then I should get what I expect
+            Record record = result.single();
+            assertEquals(559L, record.get("size").asLong());
+
+            Value stats = session.run( "CALL com.maxdemarzi.boolean.stats()").single().get("value");
+            assertTrue(stats.get("latencies").get("values.bulk").get("count").asLong() > 0);
+        }
+    }
+
+    @Test
+    void shouldBooleanWarm() {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            // Given I've started Neo4j with the procedure
+            //       which my 'neo4j' rule above does.
+            Session session = driver.session();
+
+            // When I use the procedure
+            Result result = session.run( "CALL com.maxdemarzi.boolean.warm('Order', ['status', 'color'])");
+
+            // Then I should get what I expect
+            for (Record record : result.list()) {
+                assertEquals(4L, record.get("values").asLong());
+                assertEquals(session.run("MATCH (o:Order) WHERE o.size IS NOT NULL RETURN count(o) AS count").single().get("count").asLong(),
+                    record.get("nodes").asLong());
+                assertTrue(record.get("bytes").asLong() > 0);
+            }
+
+            Record record = session.run( "CALL com.maxdemarzi.boolean.profile('Order', {not:false, and:[{property: 'color', values: ['Yellow'], not: false}]});").single();
+            assertTrue(record.get("filters").get(0).get("cached").asBoolean());
+            assertEquals(111L, record.get("size").asLong());
+        }
+    }
+
+    @Test
+    void shouldBooleanFilterRangeWithoutIndex() {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            // Given I've started Neo4j with the procedure
+            //       which my 'neo4j' rule above does.
+            Session session = driver.session();
+
+            // When I use the procedure
+            Result result = session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'id', values: ['[1,100]', '(900,1000)'], not: false}]}, 1000);");
+
+            // Then I should get what I expect
+            Record record = result.single();
+            assertEquals(199L, record.get("size").asLong());
+            ArrayList<Node> results = new ArrayList<>(record.get("nodes").asList(Value::asNode));
+            assertEquals(199, results.size());
+        }
+    }
+
+    @Test
+    void shouldBooleanFilterContainsAndSuffix() {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            // Given I've started Neo4j with the procedure
+            //       which my 'neo4j' rule above does.
+            Session session = driver.session();
+
+            // When I use the procedure
+            Result result = session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'season', values: ['*all 20*'], not: false}]});");
+
+            // Then I should get what I expect
+            assertEquals(333L, result.single().get("size").asLong());
+
+            result = session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'season', values: ['*2020'], not: false}]});");
+            assertEquals(500L, result.single().get("size").asLong());
+
+            result = session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'season', values: ['*ll*'], not: false}]});");
+            assertEquals(333L, result.single().get("size").asLong());
+        }
+    }
+
+    @Test
+    void shouldBooleanFacet() {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            // Given I've started Neo4j with the procedure
+            //       which my 'neo4j' rule above does.
+            Session session = driver.session();
+
+            // When I use the procedure
+            Result result = session.run( "CALL com.maxdemarzi.boolean.facet('Order', 'size')");
+
+            // Then I should get what I expect
+            Map<String, Long> counts = new HashMap<>();
+            result.forEachRemaining(record -> counts.put(record.get("value").asString(), record.get("count").asLong()));
+            assertEquals(125L, counts.get("Small"));
+            assertEquals(375L, counts.get("Medium"));
+            assertEquals(375L, counts.get("Large"));
+            assertEquals(125L, counts.get("Extra Large"));
+
+            result = session.run( "CALL com.maxdemarzi.boolean.facet('Order', 'size', {not:false, and:[{property: 'color', values: ['Blue'], not: false}]})");
+            assertEquals(111L, result.list().stream().mapToLong(record -> record.get("count").asLong()).sum());
+
+            // The dictionary follows committed changes
+            session.run( "CREATE (:Order {size: 'Tiny'})").consume();
+            result = session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'size', values: ['Ti*'], not: false}]})");
+            assertEquals(1L, result.single().get("size").asLong());
+
+            session.run( "MATCH (o:Order {size: 'Tiny'}) DELETE o").consume();
+            result = session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'size', values: ['Ti*'], not: false}]})");
+            assertEquals(0L, result.single().get("size").asLong());
+        }
+    }
+
+    @Test
+    void shouldBooleanFilterAcrossRelationships() {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            // Given I've started Neo4j with the procedure
+            //       which my 'neo4j' rule above does.
+            Session session = driver.session();
+            session.run( "CREATE (:Customer {segment: 'VIP'}), (:Customer {segment: 'Regular'})").consume();
+            session.run( "MATCH (c:Customer {segment: 'VIP'}), (o:Order) WHERE o.id <= 10 CREATE (c)-[:PLACED]->(o)").consume();
+            session.run( "MATCH (c:Customer {segment: 'Regular'}), (o:Order) WHERE 10 < o.id <= 20 CREATE (c)-[:PLACED]->(o)").consume();
+            session.run( "MATCH (o:Order) WHERE o.id <= 4 SET o:Priority").consume();
+
+            // When I use the procedure
+            Result result = session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[ " +
+                    "{label: 'Customer', relationship: 'PLACED', direction: 'INCOMING', property: 'segment', values: ['VIP'], not: false}," +
+                    "{property: 'color', values: ['Green'], not: true}]})");
+
+            // Then I should get what I expect
+            assertEquals(5L, result.single().get("size").asLong());
+
+            result = session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[ " +
+                    "{label: 'Priority', property: 'id', values: ['[1,3]'], not: false}]})");
+            assertEquals(3L, result.single().get("size").asLong());
+
+            session.run( "MATCH (c:Customer) DETACH DELETE c").consume();
+            session.run( "MATCH (o:Priority) REMOVE o:Priority").consume();
+        }
+    }
+
+    @Test
+    void shouldBooleanFilterOrderBy() {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            // Given I've started Neo4j with the procedure
+            //       which my 'neo4j' rule above does.
+            Session session = driver.session();
+
+            // When I use the procedure
+            Result result = session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'color', values: ['Blue'], not: false}]}, 3, 1, 'id', true)");
+
+            // Then I should get what I expect
+            Record record = result.single();
+            assertEquals(111L, record.get("size").asLong());
+            List<Long> ids = record.get("nodes").asList(node -> node.asNode().get("id").asLong());
+            assertEquals(List.of(990L, 981L, 972L), ids);
+
+            result = session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'color', values: ['Blue'], not: false}]}, 50, 0, 'amount')");
+            List<Double> amounts = result.single().get("nodes").asList(node -> node.asNode().get("amount").asDouble());
+            assertEquals(50, amounts.size());
+            for (int i = 1; i < amounts.size(); i++) {
+                assertTrue(amounts.get(i - 1) <= amounts.get(i));
+            }
+        }
+    }
+
+    @Test
+    void shouldBooleanBatch() {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            // Given I've started Neo4j with the procedure
+            //       which my 'neo4j' rule above does.
+            Session session = driver.session();
+
+            // When I use the procedure
+            Result result = session.run( "CALL com.maxdemarzi.boolean.batch('Order', [" +
+                    "{id: 'blue', query: {not:false, and:[{property: 'color', values: ['Blue'], not: false}]}}," +
+                    "{id: 'not blue', query: {not:false, and:[{property: 'id', values: ['[1,1000]'], not: false}, {property: 'color', values: ['Blue'], not: true}]}}," +
+                    "{id: 'blue online', query: {not:false, and:[{property: 'color', values: ['Blue'], not: false}, {property: 'online', values: [true], not: false}]}}" +
+                    "], true)");
+
+            // Then I should get what I expect
+            Map<String, Long> sizes = new HashMap<>();
+            result.forEachRemaining(record -> {
+                sizes.put(record.get("id").asString(), record.get("size").asLong());
+                assertTrue(record.get("bitmap").asByteArray().length > 0);
+            });
+            assertEquals(111L, sizes.get("blue"));
+            assertEquals(889L, sizes.get("not blue"));
+            assertEquals(55L, sizes.get("blue online"));
+        }
+    }
+
+    @Test
+    void shouldBooleanBitmap() {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            // Given I've started Neo4j with the procedure
+            //       which my 'neo4j' rule above does.
+            Session session = driver.session();
+
+            // When I use the procedure
+            Result result = session.run( "CALL com.maxdemarzi.boolean.bitmap('Order', {not:false, and:[{property: 'color', values: ['Blue'], not: false}]}, true)");
+
+            // Then I should get what I expect
+            Record record = result.single();
+            assertEquals(111L, record.get("size").asLong());
+            byte[] bitmap = record.get("bitmap").asByteArray();
+
+            result = session.run( "CALL com.maxdemarzi.boolean.filterAnd('Order', {not:false, and:[{property: 'online', values: [true], not: false}]}, [$bitmap])",
+                    Values.parameters("bitmap", bitmap));
+            assertEquals(55L, result.single().get("size").asLong());
+        }
+    }
+
+    @Test
+    void shouldBooleanSegment() {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            // Given I've started Neo4j with the procedure
+            //       which my 'neo4j' rule above does.
+            Session session = driver.session();
+
+            // When I use the procedure
+            Result result = session.run( "CALL com.maxdemarzi.boolean.segment.define('blue', 'Order', {not:false, and:[{property: 'color', values: ['Blue'], not: false}]})");
+            assertEquals(111L, result.single().get("size").asLong());
+            result = session.run( "CALL com.maxdemarzi.boolean.segment.define('blue online', 'Order', {not:false, and:[{segment: 'blue', not: false}, {property: 'online', values: [true], not: false}]})");
+            assertEquals(55L, result.single().get("size").asLong());
+
+            // Then I should get what I expect
+            result = session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'id', values: ['[1,1000]'], not: false}, {segment: 'blue online', not: true}]})");
+            assertEquals(945L, result.single().get("size").asLong());
+
+
+            // A redefined segment is still refreshed before the segments using it
+            session.run( "CALL com.maxdemarzi.boolean.segment.define('blue', 'Order', {not:false, and:[{property: 'color', values: ['Blue'], not: false}]})").consume();
+            session.run( "CREATE (:Order {id: 9100, color: 'Blue', online: true})").consume();
+            DatabaseCaches database = DatabaseCaches.of(neo4j.defaultDatabaseService(), NullLog.getInstance());
+            database.invalidate(Label.label("Order"), "color");
+            database.invalidate(Label.label("Order"), "online");
+            database.segments.refreshAll();
+            assertEquals(56L, database.segments.get("blue online").size());
+            session.run( "MATCH (o:Order {id: 9100}) DELETE o").consume();
+            database.invalidate(Label.label("Order"), "color");
+            database.invalidate(Label.label("Order"), "online");
+
+            // A segment in use can't be dropped
+            ClientException used = assertThrows(ClientException.class, () -> session.run( "CALL com.maxdemarzi.boolean.segment.drop('blue')").consume());
+            assertTrue(used.getMessage().contains("blue online"));
+            session.run( "CALL com.maxdemarzi.boolean.segment.drop('blue online')").consume();
+            session.run( "CALL com.maxdemarzi.boolean.segment.drop('blue')").consume();
+            assertEquals(0, session.run( "CALL com.maxdemarzi.boolean.segment.list()").list().size());
+        }
+    }
+
+    @Test
+    void shouldBooleanCount() {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            // Given I've started Neo4j with the procedure
+            //       which my 'neo4j' rule above does.
+            Session session = driver.session();
+
+            // When I use the procedure
+            Result result = session.run( "CALL com.maxdemarzi.boolean.count('Order', {not:false, and:[{property: 'color', values: ['Blue'], not: false}]})");
+
+            // Then I should get what I expect
+            Record record = result.single();
+            assertEquals(111L, record.get("count").asLong());
+            assertEquals(0L, record.get("error").asLong());
+
+            // Every order fits in one sampled chunk, so the estimate is exact
+            result = session.run( "CALL com.maxdemarzi.boolean.count('Order', {not:false, and:[{property: 'color', values: ['Blue'], not: false}]}, true, 0.01)");
+            record = result.single();
+            assertEquals(111L, record.get("count").asLong());
+            assertEquals(0L, record.get("error").asLong());
+            assertEquals(false, record.get("approximate").asBoolean());
+
+            result = session.run( "CALL com.maxdemarzi.boolean.facet('Order', 'size', {}, true)");
+            assertEquals(1000L, result.list().stream().mapToLong(row -> row.get("count").asLong()).sum());
+        }
+    }
+
+    @Test
+    void shouldSampleEstimateFromOneChunk() {
+        // Given a label over four id chunks, of which only the first is sampled
+        Roaring64NavigableMap labelIds = Bitmaps.range(0, 10);
+        labelIds.or(Bitmaps.range(200_000, 200_010));
+        Sample sample = new Sample(labelIds, 0.25);
+
+        // When half of the sampled nodes match
+        long[] estimate = sample.estimate(Bitmaps.range(0, 5));
+
+        // Then the count is scaled up, with an error bound as wide as the label
+        assertEquals(10L, estimate[0]);
+        assertEquals(20L, estimate[1]);
+    }
+
+    @Test
+    void shouldBooleanPartition() {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            // Given I've started Neo4j with the procedure
+            //       which my 'neo4j' rule above does.
+            Session session = driver.session();
+
+            // When I use the procedure
+            Result result = session.run( "CALL com.maxdemarzi.boolean.partition('Order', 'ordered_date')");
+            assertEquals(1000L, result.list().stream().mapToLong(row -> row.get("nodes").asLong()).sum());
+
+            // Then I should get what I expect
+            String since = LocalDate.now().minusDays(30).toString();
+            long expected = session.run( "MATCH (o:Order) WHERE o.ordered_date >= date($since) AND o.color = 'Blue' RETURN count(o) AS count",
+                    Values.parameters("since", since)).single().get("count").asLong();
+            result = session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[" +
+                    "{property: 'ordered_date', values: ['[" + since + ",]'], not: false}," +
+                    "{property: 'color', values: ['Blue'], not: false}]})");
+            assertEquals(expected, result.single().get("size").asLong());
+
+            // New orders land in their month
+            String query = "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'ordered_date', values: ['[" + since + ",]'], not: false}]})";
+            long before = session.run(query).single().get("size").asLong();
+            session.run( "CREATE (:Order {ordered_date: date()})").consume();
+            assertEquals(before + 1, session.run(query).single().get("size").asLong());
+            session.run( "MATCH (o:Order) WHERE o.id IS NULL AND o.ordered_date = date() DELETE o").consume();
+        }
+    }
+
+    @Test
+    void shouldBooleanFilterProbe() {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            // Given I've started Neo4j with the procedure
+            //       which my 'neo4j' rule above does.
+            Session session = driver.session();
+            session.run("CREATE INDEX ON :Order(warehouse)");
+            // Wait for the index to be populated
+            session.run("CALL db.awaitIndexes(60)").consume();
+
+            // When I use the procedure
+            Result result = session.run( "CALL com.maxdemarzi.boolean.profile('Order', {not:false, and:[ " +
+                    "{property: 'warehouse', values: ['Warehouse 1'], not: false}," +
+                    "{property: 'season', values: ['Winter 2019'], not: false}]})");
+
+            // Then I should get what I expect
+            Record record = result.single();
+            assertEquals(33L, record.get("size").asLong());
+            assertTrue(record.get("steps").asList(step -> step.get("operation").asString()).contains("PROBE"));
+        }
+    }
+
+    @Test
+    void shouldBooleanFilterWithoutSize() {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            // Given I've started Neo4j with the procedure
+            //       which my 'neo4j' rule above does.
+            Session session = driver.session();
+            String query = "{not:false, and:[ " +
+                    "{property: 'status', values: ['Unfulfilled'], not: false}," +
+                    "{property: 'warehouse', values: ['Warehouse 3'], not: false}," +
+                    "{property: 'season', values: ['Fall*'], not: false}," +
+                    "{property: 'online', values: [true], not: true} ]}";
+
+            // When I use the procedure
+            Result result = session.run( "CALL com.maxdemarzi.boolean.filter('Order', " + query + ", 5, 2, '', false, false)");
+
+            // Then I should get what I expect
+            Record record = result.single();
+            assertTrue(record.get("size").isNull());
+            List<Long> ids = record.get("nodes").asList(node -> node.asNode().id());
+            List<Long> expected = session.run( "CALL com.maxdemarzi.boolean.filter('Order', " + query + ")")
+                    .single().get("nodes").asList(node -> node.asNode().id()).subList(2, 7);
+            assertEquals(expected, ids);
+
+            // Values of a filter are merged as they are walked, and come out once in id order
+            String values = "{not:false, and:[ " +
+                    "{property: 'color', values: ['Blue', 'Red', 'Yellow'], not: false}," +
+                    "{property: 'size', values: ['Small', 'Large'], not: false}," +
+                    "{property: 'warehouse', values: ['Warehouse 1'], not: true} ]}";
+            ids = session.run( "CALL com.maxdemarzi.boolean.filter('Order', " + values + ", 20, 3, '', false, false)")
+                    .single().get("nodes").asList(node -> node.asNode().id());
+            expected = session.run( "CALL com.maxdemarzi.boolean.filter('Order', " + values + ", 20, 3)")
+                    .single().get("nodes").asList(node -> node.asNode().id());
+            assertEquals(20, ids.size());
+            assertEquals(expected, ids);
+        }
+    }
+
+    @Test
+    void shouldBooleanFilterThreshold() {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            // Given I've started Neo4j with the procedure
+            //       which my 'neo4j' rule above does.
+            Session session = driver.session();
+            String of = "of: [" +
+                    "{property: 'color', values: ['Blue'], not: false}," +
+                    "{property: 'status', values: ['Unfulfilled'], not: false}," +
+                    "{property: 'warehouse', values: ['Warehouse 3'], not: false}]";
+
+            // When I use the procedure
+            Result result = session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{atLeast: 2, " + of + "}]})");
+            long weighted = session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{atLeast: 2, weights: [2, 1, 1], " + of + "}]})")
+                    .single().get("size").asLong();
+
+            // Then I should get what I expect
+            long expected = session.run("MATCH (o:Order) WITH o, CASE WHEN o.color = 'Blue' THEN 1 ELSE 0 END + " +
+                    "CASE WHEN o.status = 'Unfulfilled' THEN 1 ELSE 0 END + CASE WHEN o.warehouse = 'Warehouse 3' THEN 1 ELSE 0 END AS matches " +
+                    "WHERE matches >= 2 RETURN count(o) AS count").single().get("count").asLong();
+            long expectedWeighted = session.run("MATCH (o:Order) WHERE o.color = 'Blue' OR (o.status = 'Unfulfilled' AND o.warehouse = 'Warehouse 3') " +
+                    "RETURN count(o) AS count").single().get("count").asLong();
+            assertEquals(expected, result.single().get("size").asLong());
+            assertEquals(expectedWeighted, weighted);
+        }
+    }
+
+    @Test
+    void shouldBooleanBatchWindowedThreshold() {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            Session session = driver.session();
+            session.run( "CALL com.maxdemarzi.boolean.partition('Order', 'ordered_date')").consume();
+            String since = LocalDate.now().minusDays(30).toString();
+
+            // When thresholds inside a date window are batched before the same filter without one
+            String windowed = "{id: 'windowed', query: {not:false, and:[" +
+                    "{property: 'ordered_date', values: ['[" + since + ",]'], not: false}," +
+                    "{atLeast: 1, not: false, of: [{property: 'color', values: ['Green'], not: false}]}]}},";
+            List<Record> results = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                results.addAll(session.run( "CALL com.maxdemarzi.boolean.batch('Order', [" + windowed.repeat(4) +
+                        "{id: 'plain', query: {not:false, and:[{property: 'color', values: ['Green'], not: false}]}}])").list());
+            }
+
+            // Then the filter outside the window still has all of its node ids
+            long expected = session.run( "MATCH (o:Order) WHERE o.ordered_date >= date($since) AND o.color = 'Green' RETURN count(o) AS count",
+                    Values.parameters("since", since)).single().get("count").asLong();
+            long green = session.run( "MATCH (o:Order) WHERE o.color = 'Green' RETURN count(o) AS count").single().get("count").asLong();
+            for (Record record : results) {
+                assertEquals(record.get("id").asString().equals("windowed") ? expected : green, record.get("size").asLong());
+            }
+        }
+    }
+
+    @Test
+    void shouldBooleanColumn() {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            // Given I've started Neo4j with the procedure
+            //       which my 'neo4j' rule above does.
+            Session session = driver.session();
+
+            // When I use the procedure
+            Record record = session.run( "CALL com.maxdemarzi.boolean.column('Order', 'size')").single();
+            long size = session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'size', values: ['Large', 'Small'], not: false}]})")
+                    .single().get("size").asLong();
+            session.run( "CALL com.maxdemarzi.boolean.column('Order', 'rating')").consume();
+            session.run( "MATCH (o:Order) WHERE o.id < 3 SET o.rating = o.id + 3.5").consume();
+            long rated = session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'rating', values: ['[4,]'], not: false}]})")
+                    .single().get("size").asLong();
+            // Integers past 2^53 are told apart
+            session.run( "MATCH (o:Order) WHERE o.id < 3 SET o.serial = 9007199254740992 + o.id").consume();
+            Record serials = session.run( "CALL com.maxdemarzi.boolean.column('Order', 'serial')").single();
+            session.run( "MATCH (o:Order) WHERE o.id = 1 SET o.serial = 9007199254740999").consume();
+            long serial = session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'serial', values: [9007199254740994], not: false}]})")
+                    .single().get("size").asLong();
+            long updated = session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'serial', values: ['[9007199254740998,9007199254740999]'], not: false}]})")
+                    .single().get("size").asLong();
+
+            // Then I should get what I expect
+            assertEquals("code", record.get("type").asString());
+            assertEquals(session.run("MATCH (o:Order) WHERE o.size IS NOT NULL RETURN count(o) AS count").single().get("count").asLong(),
+                    record.get("nodes").asLong());
+            long expected = session.run("MATCH (o:Order) WHERE o.size IN ['Large', 'Small'] RETURN count(o) AS count").single().get("count").asLong();
+            assertEquals(expected, size);
+            long expectedRated = session.run("MATCH (o:Order) WHERE o.rating >= 4 RETURN count(o) AS count").single().get("count").asLong();
+            assertEquals(2L, expectedRated);
+            assertEquals(expectedRated, rated);
+            assertEquals("integer", serials.get("type").asString());
+            assertEquals(1L, serial);
+            assertEquals(1L, updated);
+
+            // Nodes kept on the side of a column come out of the value bitmaps' share too
+            session.run( "MATCH (o:Order) WHERE o.id = 3 SET o.serial = 9007199254741000").consume();
+            DatabaseCaches database = DatabaseCaches.of(neo4j.defaultDatabaseService(), NullLog.getInstance());
+            long columns = database.columnCache.asMap().values().stream().mapToLong(ColumnStore::sizeInBytes).sum();
+            assertEquals(database.share(18) - columns, database.valueCache.synchronous().policy().eviction().get().getMaximum());
+        }
+    }
+
+    @Test
+    void shouldBooleanFilterDense() {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            // Given I've started Neo4j with the procedure
+            //       which my 'neo4j' rule above does.
+            Session session = driver.session();
+
+            // When I use the procedure
+            Result result = session.run( "CALL com.maxdemarzi.boolean.profile('Order', {not:false, and:[ " +
+                    "{property: 'warehouse', values: ['Warehouse 3'], not: false}," +
+                    "{property: 'status', values: ['Returned'], not: true}]})");
+
+            // Then I should get what I expect
+            Record record = result.single();
+            long expected = session.run("MATCH (o:Order) WHERE o.warehouse = 'Warehouse 3' AND o.status <> 'Returned' " +
+                    "RETURN count(o) AS count").single().get("count").asLong();
+            assertEquals(expected, record.get("size").asLong());
+            assertTrue(record.get("timings").asMap().containsKey("dense"));
+        }
+    }
+
+    @Test
+    void shouldDenseBitsetCopyContainers() {
+        // Given a bitmap with run, bitmap and array containers in two high buckets
+        Roaring64NavigableMap bitmap = Bitmaps.range(5, 200_000);
+        for (long id = 200_000; id < 400_000; id += 3) {
+            bitmap.addLong(id);
+        }
+        bitmap.addLong(1_000_003);
+        bitmap.addLong((1L << 32) + 70);
+        bitmap.addLong((1L << 32) + 200);
+        bitmap.runOptimize();
+
+        // When I convert part of it to words and back
+        long start = 7;
+        long end = (1L << 32) + 100;
+        Roaring64NavigableMap converted = DenseBitset.of(bitmap, start, end).toBitmap();
+
+        // Then I should get the ids inside of that part
+        Roaring64NavigableMap expected = Bitmaps.range(start, end);
+        expected.and(bitmap);
+        assertArrayEquals(expected.toArray(), converted.toArray());
+        assertEquals(expected.getLongCardinality(), DenseBitset.of(bitmap, start, end).cardinality());
+    }
+
+    @Test
+    void shouldBooleanFilterHotIntersection() throws Exception {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            // Given I've started Neo4j with the procedure
+            //       which my 'neo4j' rule above does.
+            Session session = driver.session();
+            String query = "{not:false, and:[ " +
+                    "{property: 'color', values: ['Red'], not: false}," +
+                    "{property: 'season', values: ['Summer 2019'], not: false}]}";
+            for (int i = 0; i < Intersections.HOT; i++) {
+                session.run( "CALL com.maxdemarzi.boolean.filter('Order', " + query + ")").consume();
+            }
+
+            // When I use the procedure once the intersection is built
+            Record record = eventually(() -> session.run( "CALL com.maxdemarzi.boolean.profile('Order', " + query + ")").single(),
+                    profile -> profile.get("steps").get(0).get("id").asString().contains("&"));
+
+            // Then I should get what I expect
+            long expected = session.run("MATCH (o:Order) WHERE o.color = 'Red' AND o.season = 'Summer 2019' " +
+                    "RETURN count(o) AS count").single().get("count").asLong();
+            assertEquals(expected, record.get("size").asLong());
+            assertEquals("INIT", record.get("steps").get(0).get("operation").asString());
+            assertTrue(record.get("steps").get(0).get("id").asString().contains("&"));
+        }
+    }
+
+    @Test
+    void shouldBooleanFilterExists() {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            // Given I've started Neo4j with the procedure
+            //       which my 'neo4j' rule above does.
+            Session session = driver.session();
+            session.run("MATCH (o:Order) WHERE o.id % 10 = 0 SET o.discount = 0.1").consume();
+
+            // When I use the procedure
+            long missing = session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'discount', exists: false, not: false}]})")
+                    .single().get("size").asLong();
+            long blueWithout = session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[ " +
+                    "{property: 'color', values: ['Blue'], not: false}," +
+                    "{property: 'discount', exists: true, not: true}]})").single().get("size").asLong();
+
+            // Then I should get what I expect
+            assertEquals(session.run("MATCH (o:Order) WHERE o.discount IS NULL RETURN count(o) AS count").single().get("count").asLong(), missing);
+            assertEquals(session.run("MATCH (o:Order) WHERE o.color = 'Blue' AND o.discount IS NULL RETURN count(o) AS count").single().get("count").asLong(), blueWithout);
+            assertTrue(blueWithout < 111L);
+        }
+    }
+
+    @Test
+    void shouldBooleanReplicate() throws Exception {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            Session session = driver.session();
+            session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'season', values: ['Spring 2020'], not: false}]});").consume();
+            DatabaseCaches database = DatabaseCaches.of(neo4j.defaultDatabaseService(), NullLog.getInstance());
+            Roaring64NavigableMap spring = database.valueCache.synchronous().get(Triple.of(Label.label("Order"), "season", "Spring 2020"));
+
+            // Given replication through a directory, as if it was mounted by every instance of a cluster,
+            // only for this test, so the others don't publish what they load
+            Path directory = Files.createTempDirectory("replication");
+            System.setProperty("com.maxdemarzi.boolean.replication", directory.toString());
+            Replication replication;
+            try {
+                replication = Replication.of(database);
+            } finally {
+                System.clearProperty("com.maxdemarzi.boolean.replication");
+            }
+            DirectoryTransport peer = new DirectoryTransport(directory.resolve("neo4j"), "peer");
+
+            // When a bitmap is loaded, it is published with the transaction it is valid for
+            long transactionId = replication.transactionId();
+            replication.publish(Triple.of(Label.label("Order"), "season", "Spring 2020"), transactionId, spring);
+            List<byte[]> received = eventually(peer::receive, entries -> !entries.isEmpty());
+            Replication.Entry published = Replication.decode(received.get(0));
+            assertEquals("Spring 2020", published.key.getRight());
+            assertEquals(transactionId, published.transactionId);
+            assertEquals(167L, published.bitmap.getLongCardinality());
+
+            // A bitmap a peer published at the same transaction is used instead of being loaded,
+            // one published at an older transaction is dropped
+            peer.publish(Replication.encode(new Replication.Entry(
+                    Triple.of(published.key.getLeft(), "season", "Spring 2030"), transactionId, published.bitmap)));
+            peer.publish(Replication.encode(new Replication.Entry(
+                    Triple.of(published.key.getLeft(), "season", "Spring 2040"), transactionId - 1, published.bitmap)));
+            replication.apply();
+
+            // Then I should get what I expect
+            assertEquals(167L, session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'season', values: ['Spring 2030'], not: false}]});")
+                    .single().get("size").asLong());
+            assertEquals(0L, session.run( "CALL com.maxdemarzi.boolean.filter('Order', {not:false, and:[{property: 'season', values: ['Spring 2040'], not: false}]});")
+                    .single().get("size").asLong());
+            Map<String, Object> stats = replication.stats();
+            assertEquals(1L, stats.get("applied"));
+            assertEquals(1L, stats.get("dropped"));
+            assertEquals(0.5, stats.get("appliedRatio"));
+        }
+    }
+
+    @Test
+    void shouldBooleanReplicateFilter() throws Exception {
+        // Given two instances of the database replicating through a directory, scoped to this test
+        Path directory = Files.createTempDirectory("replication");
+        DatabaseCaches loading;
+        DatabaseCaches peer;
+        System.setProperty("com.maxdemarzi.boolean.replication", directory.toString());
+        try {
+            loading = new DatabaseCaches(neo4j.defaultDatabaseService(), NullLog.getInstance());
+        } finally {
+            System.clearProperty("com.maxdemarzi.boolean.replication");
+        }
+        PeerTransport.directory = directory;
+        System.setProperty("com.maxdemarzi.boolean.replication.transport", PeerTransport.class.getName());
+        try {
+            peer = new DatabaseCaches(neo4j.defaultDatabaseService(), NullLog.getInstance());
+        } finally {
+            System.clearProperty("com.maxdemarzi.boolean.replication.transport");
+        }
+
+        // When one of them runs a filter
+        Map<String, Object> season = new HashMap<>();
+        season.put("property", "season");
+        season.put("values", new ArrayList<>(List.of("Spring 2020")));
+        season.put("not", false);
+        Map<String, Object> query = new HashMap<>();
+        query.put("not", false);
+        query.put("and", new ArrayList<>(List.of(season)));
+        assertEquals(167L, Procedures.filter(loading, Label.label("Order"), query, QueryProfile.NONE).getLongCardinality());
+
+        // Then the bitmap it loaded is published, and the other applies it into its cache
+        Triple<Label, String, Object> key = Triple.of(Label.label("Order"), "season", "Spring 2020");
+        Roaring64NavigableMap applied = eventually(() -> {
+            peer.replication.apply();
+            return peer.valueCache.synchronous().asMap().get(key);
+        }, bitmap -> bitmap != null);
+        assertEquals(167L, applied.getLongCardinality());
+        assertEquals(1L, loading.replication.stats().get("published"));
+        assertEquals(1L, peer.replication.stats().get("applied"));
+    }
+
+    // Reads the directory as another instance would
+    static class PeerTransport implements ReplicationTransport {
+        static Path directory;
+        private final DirectoryTransport transport;
+
+        public PeerTransport(String database) {
+            transport = new DirectoryTransport(directory.resolve(database), "peer");
+        }
+
+        @Override
+        public void publish(byte[] entry) throws IOException {
+            transport.publish(entry);
+        }
+
+        @Override
+        public List<byte[]> receive() throws IOException {
+            return transport.receive();
+        }
+    }
+
+    @Test
+    void shouldBooleanStandingQuery() throws Exception {
+        // In a try-block, to make sure we close the driver after the test
+        try(Driver driver = GraphDatabase.driver( neo4j.boltURI() , Config.builder().withoutEncryption().build())) {
+            Session session = driver.session();
+
+            // Given a registered query nothing matches yet
+            Record registered = session.run( "CALL com.maxdemarzi.boolean.standing.register('ninth', 'Order', " +
+                    "{not:false, and:[{property: 'warehouse', values: ['Warehouse 9'], not: false}]})").single();
+            assertEquals(0L, registered.get("size").asLong());
+            long token = registered.get("token").asLong();
+
+            // When a matching order commits, only it is added
+            long nodeId = session.run( "CREATE (o:Order {id: 9001, warehouse: 'Warehouse 9'}) RETURN id(o) AS id").single().get("id").asLong();
+            Record changes = eventually(() -> session.run( "CALL com.maxdemarzi.boolean.standing.changes('ninth', $token)", Map.of("token", token)).single(),
+                    change -> !change.get("added").isEmpty());
+            assertEquals(List.of(nodeId), changes.get("added").asList(Value::asLong));
+            assertTrue(changes.get("removed").asList().isEmpty());
+            long added = changes.get("token").asLong();
+
+            // And when it is deleted, it is removed
+            session.run( "MATCH (o:Order {id: 9001}) DETACH DELETE o").consume();
+            changes = eventually(() -> session.run( "CALL com.maxdemarzi.boolean.standing.changes('ninth', $token)", Map.of("token", added)).single(),
+                    change -> !change.get("removed").isEmpty());
+            assertTrue(changes.get("added").asList().isEmpty());
+            assertEquals(List.of(nodeId), changes.get("removed").asList(Value::asLong));
+
+            // Added and removed since the first token is no change, and an unknown token starts over
+            changes = session.run( "CALL com.maxdemarzi.boolean.standing.changes('ninth', $token)", Map.of("token", token)).single();
+            assertTrue(changes.get("added").asList().isEmpty());
+            assertTrue(changes.get("removed").asList().isEmpty());
+            assertTrue(session.run( "CALL com.maxdemarzi.boolean.standing.changes('ninth', -1)").single().get("reset").asBoolean());
+            session.run( "CALL com.maxdemarzi.boolean.standing.drop('ninth')").consume();
+
+            // Relationship changes don't touch the nodes a hop would match, so hops can't stand
+            ClientException rejected = assertThrows(ClientException.class, () -> session.run( "CALL com.maxdemarzi.boolean.standing.register('placed', 'Order', " +
+                    "{not:false, and:[{label: 'Customer', relationship: 'PLACED', direction: 'INCOMING', property: 'segment', values: ['VIP'], not: false}]})").consume());
+            assertTrue(rejected.getMessage().contains("relationship"));
+        }
+    }
+
+    // Reads until the background work is done, failing when it isn't within ten seconds
+    private static <T> T eventually(Callable<T> read, Predicate<T> done) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        T value = read.call();
+        while (!done.test(value)) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting on " + value);
+            TimeUnit.MILLISECONDS.sleep(50);
+            value = read.call();
+        }
+        return value;
+    }
+
     private static final String MODEL_STATEMENT = "WITH  " +
             "[\"Unfulfilled\", \"Scheduled\", \"Shipped\", \"Shipped\", \"Shipped\", \"Shipped\", \"Returned\"] AS statuses, " +
             "[\"Warehouse 1\",\"Warehouse 2\",\"Warehouse 3\",\"Warehouse 3\",\"Warehouse 3\"] AS warehouses, " +